@@ -0,0 +1,16 @@
+/***************
+ * AckMessage
+ * Spring 21: CSC340
+ * This is the Acknowledge message
+ * Sent by the client for every snapshot it has applied, so the server
+ * knows which snapshot it can send the next delta against.
+ ***************/
+import java.io.Serializable;
+
+public class AckMessage extends Message implements Serializable {
+    long tick;
+    public AckMessage(long tick) {
+        this.tick = tick;
+    }
+
+}
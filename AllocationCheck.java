@@ -0,0 +1,98 @@
+/***************
+ * AllocationCheck
+ * Spring 21: CSC340
+ * Checks that the game part of a tick (GameEngine.simulate: input, moving, spawning, collisions)
+ * doesn't make garbage once the game has warmed up, since every garbage collection pause shows
+ * up as a stutter for every client at once.
+ * Publishing the snapshot is NOT part of the budget: it runs on the same thread, but a new
+ * immutable snapshot is how the engine hands the game to the readers, so it always allocates.
+ * It is published every SEND_INTERVAL ticks as the server does it, and what that allocates is
+ * reported (averaged over all the ticks) next to simulate's, so it can be kept an eye on.
+ * Plays a seeded game on this thread (no server, no engine thread) and measures the bytes
+ * this thread allocates each tick.  Exits with status 1 if simulate allocates more than
+ * SIMULATE_BUDGET bytes a tick on average, so it can be run as a check after changing the engine.
+ *     java AllocationCheck [PLAYERS] [WORLD_SIZE] [TICKS] [SEND_INTERVAL]
+ ***************/
+import java.awt.Color;
+import java.io.OutputStream;
+import java.io.PrintStream;
+import java.lang.management.ManagementFactory;
+import java.util.Random;
+
+public class AllocationCheck {
+    public static final long SEED = 340;
+    public static final int WARMUP_TICKS = 6000;     // Ticks played before measuring (for the JIT to settle and the snacks to fill up)
+    public static final int TURN_INTERVAL = 30;      // Ticks between the players changing direction
+    public static final long SIMULATE_BUDGET = 64;   // Most bytes simulate may allocate a tick, on average
+
+    private static com.sun.management.ThreadMXBean threads =
+        (com.sun.management.ThreadMXBean) ManagementFactory.getThreadMXBean();
+
+    // Bytes allocated by this thread so far
+    private static long allocated() {
+        return threads.getThreadAllocatedBytes(Thread.currentThread().getId());
+    }
+
+    public static void main(String[] args) {
+        int players = args.length > 0 ? Integer.parseInt(args[0]) : 200;
+        double worldSize = args.length > 1 ? Double.parseDouble(args[1]) : GameState.DEFAULT_SIZE;
+        int ticks = args.length > 2 ? Integer.parseInt(args[2]) : 1000;
+        int sendInterval = args.length > 3 ? Integer.parseInt(args[3]) : GameServer.DEFAULT_SEND_INTERVAL;
+        if (!threads.isThreadAllocatedMemorySupported()) {
+            System.err.println("This JVM can't measure allocation, nothing checked");
+            return;
+        }
+        threads.setThreadAllocatedMemoryEnabled(true);
+
+        // The engine prints each player it adds
+        PrintStream out = System.out;
+        System.setOut(new PrintStream(OutputStream.nullOutputStream()));
+        GameEngine e = new GameEngine(1, worldSize);
+        e.setPublishInterval(sendInterval);
+        e.gameState.rand = new Random(SEED);
+        for (int i = 0; i < players; i++) e.addPlayer("p" + i, Color.RED);
+        for (int i = 0; i < 100; i++) e.gameState.addRandomSnack();
+        System.setOut(out);
+
+        Random turn = new Random(SEED);
+        long overhead = allocated();
+        overhead = allocated() - overhead;   // What asking costs
+        long simulateBytes = 0;
+        long simulateMax = 0;
+        long publishBytes = 0;
+        int allocatingTicks = 0;
+        for (int t = 0; t < WARMUP_TICKS + ticks; t++) {
+            if (t % TURN_INTERVAL == 0) {
+                for (int i = 0; i < players; i++) {
+                    e.setPlayerDirection(i, turn.nextDouble() - 0.5, turn.nextDouble() - 0.5);
+                }
+            }
+            long before = allocated();
+            e.tick++;
+            e.simulate(System.nanoTime());
+            long middle = allocated();
+            if (e.tick % e.publishInterval == 0) e.published = Snapshot.of(e.gameState, e.tick);
+            long after = allocated();
+
+            if (t < WARMUP_TICKS) continue;
+            long simulate = Math.max(0, middle - before - overhead);
+            simulateBytes += simulate;
+            simulateMax = Math.max(simulateMax, simulate);
+            if (simulate > 0) allocatingTicks++;
+            publishBytes += Math.max(0, after - middle - overhead);
+        }
+
+        Snapshot s = e.getSnapshot();
+        System.out.println(players + " players, " + s.getSnackCount() + " snacks, " +
+                           e.gameState.getActiveChunkCount() + " chunks, " + ticks + " ticks measured");
+        System.out.printf("simulate: %.1f bytes/tick on average, %d at most, %d ticks allocated anything%n",
+                          (double) simulateBytes / ticks, simulateMax, allocatingTicks);
+        System.out.printf("publish:  %.1f KB/tick on average, a snapshot every %d ticks (not part of the budget)%n",
+                          publishBytes / 1024.0 / ticks, e.publishInterval);
+        if (simulateBytes > SIMULATE_BUDGET*ticks) {
+            System.out.println("FAILED: simulate allocates more than " + SIMULATE_BUDGET + " bytes/tick");
+            System.exit(1);
+        }
+        System.out.println("OK");
+    }
+}
@@ -9,16 +9,13 @@
  ***************/
 import java.awt.*;        // import statements to make necessary classes available
 import java.awt.geom.*;
+import java.awt.image.BufferedImage;
 import javax.swing.*;
 import javax.swing.event.MouseInputAdapter;
 import java.awt.event.*;
 import java.io.*;
 import java.net.Socket;
 import java.net.UnknownHostException;
-import java.util.ArrayList;
-import java.util.Deque;
-import java.io.ObjectOutputStream;
-import java.io.ObjectInputStream;
 
 public class App extends JFrame {
     /**
@@ -33,11 +30,14 @@ public class App extends JFrame {
         frame.setVisible(true);
     }
 
-    static final double MIN_WIDTH = 50; // Minimum dimensions of the screen for cells.
-    static final double MIN_HEIGHT = 50;
+    static final double MIN_WIDTH = Snapshot.MIN_VIEW_WIDTH; // Minimum dimensions of the screen for cells.
+    static final double MIN_HEIGHT = Snapshot.MIN_VIEW_HEIGHT;
+    static final Color BACKGROUND = new Color(200, 200, 220);
 
     private GameEngine gameEngine;
-    private GameState gameState;
+    private Snapshot snapshot;  // Snapshot of the game being drawn
+    private InterpolationBuffer interpolation = new InterpolationBuffer(32);  // Snapshots received, to draw in between
+    private SnapshotHistory received = new SnapshotHistory(2*GameServer.MAX_DELTA_TICKS);  // Recent snapshots, for deltas
     private VisPanel visPane;
     private Debug debug = Debug.getInstance();
     JDialog debugWindow = null;
@@ -46,6 +46,7 @@ public class App extends JFrame {
     private int port = GameServer.DEFAULT_PORT;
     private Connection connection = null;
     private String name;
+    private ReplayPlayer replay = null;  // The replay being watched (null if none)
 
     /* Constructor: Sets up the initial look-and-feel */
     public App() {
@@ -203,9 +204,72 @@ public class App extends JFrame {
         menuItem = new JMenuItem(menuAction);
         menu.add(menuItem);
         mbar.add(menu);
+
+        menu = new JMenu("Replay");
+        menuAction = new AbstractAction("Open Replay...") {
+            public void actionPerformed(ActionEvent e) {
+                JFileChooser chooser = new JFileChooser();
+                if (chooser.showOpenDialog(App.this) != JFileChooser.APPROVE_OPTION) return;
+                openReplay(chooser.getSelectedFile());
+            }
+        };
+        menuAction.putValue(Action.SHORT_DESCRIPTION, "Watch a game recorded by a server");
+        menuItem = new JMenuItem(menuAction);
+        menu.add(menuItem);
+        menuAction = new AbstractAction("Replay Speed") {
+            public void actionPerformed(ActionEvent e) {
+                if (replay == null) return;
+                String speed = JOptionPane.showInputDialog("Please enter the replay speed (1 is real time, 0 pauses).\nCurrent speed: " + replay.getSpeed());
+                if (speed != null && speed.length() > 0) {
+                    try {
+                        replay.setSpeed(Double.parseDouble(speed));
+                    } catch (NumberFormatException ignore) {
+                        JOptionPane.showMessageDialog(null, "The speed [" + speed + "] must be a number.", "Number Format Error", JOptionPane.ERROR_MESSAGE);
+                    }
+                }
+            }
+        };
+        menuAction.putValue(Action.SHORT_DESCRIPTION, "Set how fast the replay plays");
+        menuItem = new JMenuItem(menuAction);
+        menu.add(menuItem);
+        menuAction = new AbstractAction("Jump To Tick") {
+            public void actionPerformed(ActionEvent e) {
+                if (replay == null) return;
+                String tick = JOptionPane.showInputDialog("Please enter the tick to jump to (" + replay.getFirstTick() + " to " + replay.getLastTick() + ").");
+                if (tick != null && tick.length() > 0) {
+                    try {
+                        replay.seek(Long.parseLong(tick));
+                    } catch (NumberFormatException ignore) {
+                        JOptionPane.showMessageDialog(null, "The tick [" + tick + "] must be an integer.", "Number Format Error", JOptionPane.ERROR_MESSAGE);
+                    }
+                }
+            }
+        };
+        menuAction.putValue(Action.SHORT_DESCRIPTION, "Jump to a tick of the replay");
+        menuItem = new JMenuItem(menuAction);
+        menu.add(menuItem);
+        mbar.add(menu);
         setJMenuBar(mbar);
     }
 
+    /**
+     * Watch a replay (instead of the game being played, if any)
+     * @param file The replay log
+     **/
+    private void openReplay(File file) {
+        try {
+            ReplayPlayer player = new ReplayPlayer(file.toPath());
+            if (replay != null) replay.stop();
+            replay = player;
+            playerID = -1;  // Just watching
+            gameEngine = player.getEngine();
+            new Thread(player, "Replay").start();
+            setTitle("NetWorm - " + file.getName());
+        } catch (IOException e) {
+            JOptionPane.showMessageDialog(null, "Could not open the replay: " + e.getMessage(), "Replay Error", JOptionPane.ERROR_MESSAGE);
+        }
+    }
+
     public void establishConnection() {
         try {
 
@@ -234,8 +298,8 @@ public class App extends JFrame {
 // A connection to handle incomming communication from the server (as its own thread)
 class Connection extends Thread {
     Socket socket;
-    ObjectOutputStream out;
-    ObjectInputStream in;
+    DataOutputStream out;
+    DataInputStream in;
     boolean done;
     //Constructor
     public Connection(Socket socket){
@@ -245,10 +309,10 @@ class Connection extends Thread {
     public void run( ) {
            try {
                //First make the streams to get and send information to and from the client via this thread
-               out=new ObjectOutputStream(socket.getOutputStream());
-               in=new ObjectInputStream(socket.getInputStream());
+               out=new DataOutputStream(new BufferedOutputStream(socket.getOutputStream()));
+               in=new DataInputStream(new BufferedInputStream(socket.getInputStream()));
                while(!done){
-                    Object message = in.readObject();
+                    Object message = MessageCodec.readMessage(in);
                     //if the message is null, that means the stream is done
                     if(message==null){
                         debug.println(1, "Line terminated. Ending connection.");
@@ -260,9 +324,6 @@ class Connection extends Thread {
                     }
                }
           }
-          catch (ClassNotFoundException e) {
-                debug.println(1, "Coding Error: Server transmitted unrecognized Object");
-            }
           catch (IOException e) {
                 printMessage("IO Error: Error establishing communication with server.");
                 printMessage("          " + e.getMessage());
@@ -279,22 +340,44 @@ class Connection extends Thread {
         }
     }
         private void processMessage(Object message) {
-            debug.println(3, "[ Connection ] Processing line: "  + message);
+            debug.println(3, () -> "[ Connection ] Processing line: "  + message);
             // protocol for the server passing the playerID to client
-            //see if the received message is a GameState or JoinResponseMessage
+            //see if the received message is a Snapshot (full or delta) or JoinResponseMessage
             if(message instanceof JoinResponseMessage) {
                 processJoinResponseMessage((JoinResponseMessage) message);
             }
-            else if(message instanceof GameState){
-                processGameStateMessage((GameState) message);
+            else if(message instanceof Snapshot){
+                processGameStateMessage((Snapshot) message);
+            }
+            else if(message instanceof SnapshotDeltaMessage){
+                processSnapshotDeltaMessage((SnapshotDeltaMessage) message);
             }
             else debug.println(5, "Incoming message not recognized by any message instance");
         }
         //process an incoming game state
-        private void processGameStateMessage(GameState state){
-            gameState=state;
+        private void processGameStateMessage(Snapshot state){
+            interpolation.add(state, System.nanoTime());
+            received.add(state);
+            //let the server know it can send deltas against this one
+            transmitMessage(new AckMessage(state.tick));
             debug.println(3, "Successfully processed a gameStateMessage.");
-            state.display(debug.getStream());
+            //the whole snapshot is only built into text when asked for, above the default level
+            debug.println(6, () -> state.describe());
+        }
+        //process the changes since an earlier snapshot
+        private void processSnapshotDeltaMessage(SnapshotDeltaMessage message){
+            Snapshot base = received.get(message.baseTick);
+            if(base==null){
+                //too old, the server will send a full snapshot once it sees we are behind
+                debug.println(3, () -> "Dropping delta against unknown snapshot "+message.baseTick);
+                return;
+            }
+            try {
+                processGameStateMessage(MessageCodec.applyDelta(base, message));
+            }
+            catch(IOException e) {
+                debug.println(1, "Error applying snapshot delta: "+e.getMessage());
+            }
         }
         //process an incoming response to this client's initial join message
         private void processJoinResponseMessage(JoinResponseMessage message) {
@@ -304,7 +387,7 @@ class Connection extends Thread {
         public void transmitMessage(Object message)  {
             try {
                 synchronized (out) {
-                    out.writeObject(message);
+                    MessageCodec.writeMessage(out, message);
                     out.flush();
                 }
             }
@@ -322,6 +405,15 @@ class Connection extends Thread {
 
     public class VisPanel extends JPanel {
         Graphics2D g2;
+        AffineTransform world;   // The world to screen transform set up for this frame
+        AffineTransform device;  // The panel's own transform (with any HiDPI scaling), for the sprites
+        double deviceScale;      // Screen pixels per panel pixel (more than 1 on a scaled display)
+        SpriteCache sprites = new SpriteCache();   // Pre-drawn cells
+        Ellipse2D.Double circ = new Ellipse2D.Double();  // Reused for every cell drawn
+        double viewMinX;   // The part of the world that is visible this frame, cells outside it are skipped
+        double viewMaxX;
+        double viewMinY;
+        double viewMaxY;
 
         public VisPanel() {
             setPreferredSize(new Dimension(1000,1000) ); // Set size of drawing area, in pixels.
@@ -389,40 +481,30 @@ class Connection extends Thread {
         /* Used for drawing the network */
         protected void paintComponent(Graphics g) {
             g2 = (Graphics2D) g.create();
+            device = g2.getTransform();
+            deviceScale = Math.abs(device.getScaleX());
+            sprites.beginFrame();
             g2.setRenderingHint(RenderingHints.KEY_ANTIALIASING, RenderingHints.VALUE_ANTIALIAS_ON);
-            g2.setPaint(new Color(200, 200, 220));
+            g2.setPaint(BACKGROUND);
             g2.fillRect(0, 0, getWidth(), getHeight());
 
             if (gameEngine != null) {
-                GameState gameState = gameEngine.getGameState();
+                snapshot = gameEngine.getSnapshot();
+            } else {
+                //draw a little in the past, in between the snapshots received
+                snapshot = interpolation.sample(System.nanoTime());
             }
+            Snapshot gameState = snapshot;
             // Compute the dimensions of the world
             if (gameState == null) return;  // Nothing to draw yet anyway
 
             Rectangle2D.Double bounds = null;
-            if (playerID == -1 || gameState.getPlayers().size()<=playerID) {
+            if (playerID == -1 || gameState.indexOf(playerID) < 0) {
                 //default (unzoomed) bounding box, similar to the spectator
                 bounds = new Rectangle2D.Double(0, 0, gameState.maxX, gameState.maxY);
             } else {
                 // Get some nice bounds around the player's cells
-                bounds = gameState.getBoundingBox(playerID);
-
-                // Add a little buffer (5% of width/height) on all sides
-                // Or increase size to fit a minimum
-                double bufferX = bounds.width*0.05;
-                if (bounds.width*1.1 < MIN_WIDTH) {
-                    // Too small even with buffer
-                    bufferX = (MIN_WIDTH - bounds.width)*0.5;
-                }
-                double bufferY = bounds.height*0.05;
-                if (bounds.height*1.1 < MIN_HEIGHT) {
-                    // Too small even with buffer
-                    bufferY = (MIN_HEIGHT - bounds.height)*0.5;
-                }
-                bounds.x -= bufferX;
-                bounds.y -= bufferY;
-                bounds.width += bufferX*2;
-                bounds.height += bufferY*2;
+                bounds = gameState.getViewBox(playerID);
             }
             setupViewport(bounds.x, bounds.x + bounds.width, bounds.y, bounds.y + bounds.height);
             drawGameState(gameState);
@@ -459,47 +541,54 @@ class Connection extends Thread {
 
             g2.scale(width/(right-left), height/(bottom-top));
             g2.translate(-left, -top);
+            world = g2.getTransform();
+            viewMinX = Math.min(left, right);
+            viewMaxX = Math.max(left, right);
+            viewMinY = Math.min(bottom, top);
+            viewMaxY = Math.max(bottom, top);
         }
 
-        private void drawGameState(GameState gameState) {
+        private void drawGameState(Snapshot gameState) {
             if (gameState == null) return;   // No game to display yet!
 
             if (cellFont == null) {
                 // Create the cell font
-                cellFont = new Font("Serif", Font.BOLD, 18);
+                cellFont = SpriteCache.LABEL_FONT;
             }
             g2.setColor(Color.BLACK);
             g2.drawRect(-1, -1, (int)gameState.maxX+2, (int)gameState.maxY+2);
 
             cellFontMetrics = g2.getFontMetrics(cellFont);
 
+            // The cells are mostly drawn as sprites, in the panel's coordinates
+            g2.setTransform(device);
+
             // Draw the snacks first
             drawSnacks(gameState);
 
             // Iterate through all of the players and all of the cells in the game
-            ArrayList<GameState.Player> player = gameState.getPlayers();
-            for (GameState.Player p: player) {
-                drawPlayer(p);
+            for (int p = 0; p < gameState.playerCount; p++) {
+                drawPlayer(gameState, p);
             }
         }
 
         // Draw the cells for this player
-        private void drawPlayer(GameState.Player p) {
-            Deque<GameState.Cell> cell = p.getCells();
-            String name = p.getName();
-            Color appearance = p.getAppearance();
-            for (GameState.Cell c: cell) {
-                drawCell(c.x, c.y, c.r, null, appearance);
+        private void drawPlayer(Snapshot gameState, int p) {
+            int head = gameState.cellStart[p];
+            int end = gameState.cellStart[p+1];
+            if (head == end) return;  // No cells to draw
+            String name = gameState.name[p];
+            Color appearance = gameState.appearance[p];
+            for (int c = head; c < end; c++) {
+                drawCell(gameState.cellX[c], gameState.cellY[c], gameState.cellR[c], null, appearance);
             }
-            GameState.Cell head = cell.peekFirst();
-            drawCell(head.x, head.y, head.r, name, appearance);
+            drawCell(gameState.cellX[head], gameState.cellY[head], gameState.cellR[head], name, appearance);
         }
 
         // Draw the cells for the snacks
-         private void drawSnacks(GameState gameState) {
-             ArrayList<GameState.Cell> snacks = gameState.getSnacks();
-             for (GameState.Cell s: snacks) {
-                 drawCell(s.x, s.y, s.r, null, gameState.snackColor);
+         private void drawSnacks(Snapshot gameState) {
+             for (int s = 0; s < gameState.snackCount; s++) {
+                 drawCell(gameState.snackX[s], gameState.snackY[s], gameState.snackR[s], null, gameState.snackColor);
              }
          }
 
@@ -507,15 +596,34 @@ class Connection extends Thread {
         private FontMetrics cellFontMetrics = null;
 
         private void drawCell(double cx, double cy, double radius, String text, Color color) {
-            AffineTransform cs = g2.getTransform();
-            g2.translate(cx, cy);   // Make cx,cy the center... easier to think about.
+            // Skip cells that can't be seen
+            if (cx + radius < viewMinX || cx - radius > viewMaxX ||
+                cy + radius < viewMinY || cy - radius > viewMaxY) return;
+
+            // Small enough cells are copied from a pre-drawn sprite.  The sprite is drawn in screen
+            // pixels (world's scale includes the display's), then placed in the panel's coordinates.
+            // If this frame has more different cells than the cache holds, the rest are drawn out.
+            double scale = Math.abs(world.getScaleX());
+            int pixels = (int) Math.round(radius*scale);
+            BufferedImage sprite = pixels <= SpriteCache.MAX_RADIUS ? sprites.get(color, Math.max(1, pixels), text) : null;
+            if (sprite != null) {
+                // The viewport and the panel's transform only scale and move
+                double sx = (world.getScaleX()*cx + world.getTranslateX() - device.getTranslateX())/device.getScaleX();
+                double sy = (world.getScaleY()*cy + world.getTranslateY() - device.getTranslateY())/device.getScaleY();
+                int size = (int) Math.round(sprite.getWidth()/deviceScale);
+                g2.drawImage(sprite, (int) Math.round(sx - size/2.0), (int) Math.round(sy - size/2.0), size, size, null);
+                return;
+            }
 
-            g2.setPaint(color);
+            // Big ones (and any without a sprite) are drawn out in the world coordinates
+            g2.setTransform(world);
+            g2.setPaint(color != null ? color : SpriteCache.NO_COLOR);
             double diam = radius*2;
-            Ellipse2D circ = new Ellipse2D.Double(-radius, -radius, diam, diam);
+            circ.setFrame(cx - radius, cy - radius, diam, diam);
             g2.fill(circ);
 
             if (text != null) {
+                g2.translate(cx, cy);   // Make cx,cy the center... easier to think about.
                 // Compute the starting position of text so it is centered at cx,cy
                 // Determine the X coordinate for the text
                 // double x = cx - metrics.stringWidth(text) / 2.0;
@@ -531,8 +639,7 @@ class Connection extends Thread {
                 g2.setFont(cellFont);
                 g2.drawString(text, (float) x, (float) y);
             }
-
-            g2.setTransform(cs);
+            g2.setTransform(device);
         }
     }
 
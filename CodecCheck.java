@@ -0,0 +1,77 @@
+/***************
+ * CodecCheck
+ * Spring 21: CSC340
+ * Checks every message that carries a name or text comes back from MessageCodec the same as it
+ * went in, for names that aren't plain ASCII too: a NUL, accents, and an emoji (which the
+ * format writes as two surrogates, so it is the one most easily mangled).  Covers the join
+ * messages, a text message, the game state, and a snapshot both in full and as a delta.
+ * Needs no server.  Exits with status 1 if anything fails.
+ *     java CodecCheck
+ ***************/
+import java.awt.Color;
+import java.io.OutputStream;
+import java.io.PrintStream;
+import java.nio.ByteBuffer;
+
+public class CodecCheck {
+    public static final String[] NAMES = {
+        "plain", "", "nul\u0000here", "Zo\u00eb \u00e7a", "snake \uD83D\uDC0D", "\u4e2d\u6587"
+    };
+
+    private static int failures = 0;
+
+    private static void check(boolean ok, String what) {
+        if (ok) return;
+        System.out.println("FAILED: " + what);
+        failures++;
+    }
+
+    // Encode a message and decode it again, as it goes over the network
+    private static Object roundTrip(Object message) throws Exception {
+        byte[] frame = MessageCodec.encode(message);
+        return MessageCodec.decode(ByteBuffer.wrap(frame, 4, frame.length - 4).slice());
+    }
+
+    public static void main(String[] args) throws Exception {
+        for (String name: NAMES) {
+            String shown = name.replace("\u0000", "\\0");
+            JoinMessage join = (JoinMessage) roundTrip(new JoinMessage(name, Color.RED));
+            check(name.equals(join.name), "join name \"" + shown + "\" came back as \"" + join.name + "\"");
+            JoinResponseMessage response = (JoinResponseMessage) roundTrip(new JoinResponseMessage(name, 3));
+            check(name.equals(response.name), "join response name \"" + shown + "\" came back as \"" + response.name + "\"");
+            StringMessage text = (StringMessage) roundTrip(new StringMessage(name));
+            check(name.equals(text.message), "text \"" + shown + "\" came back as \"" + text.message + "\"");
+        }
+
+        // The engine prints each player it adds
+        PrintStream out = System.out;
+        System.setOut(new PrintStream(OutputStream.nullOutputStream()));
+        GameEngine e = new GameEngine();
+        e.addPlayer("first", Color.BLUE);
+        Snapshot base = Snapshot.of(e.gameState, 1);
+        for (String name: NAMES) e.addPlayer(name, Color.GREEN);
+        Snapshot snap = Snapshot.of(e.gameState, 2);
+        GameState state = (GameState) roundTrip(e.gameState);
+        System.setOut(out);
+
+        Snapshot full = (Snapshot) roundTrip(snap);
+        byte[] frame = MessageCodec.encodeDelta(base, snap);
+        SnapshotDeltaMessage delta = (SnapshotDeltaMessage) MessageCodec.decode(ByteBuffer.wrap(frame, 4, frame.length - 4).slice());
+        Snapshot applied = MessageCodec.applyDelta(base, delta);
+        for (int i = 0; i < snap.playerCount; i++) {
+            String name = snap.name[i];
+            check(name.equals(full.name[i]), "snapshot name \"" + name + "\" came back as \"" + full.name[i] + "\"");
+            check(name.equals(applied.name[i]), "delta name \"" + name + "\" came back as \"" + applied.name[i] + "\"");
+        }
+        check(state.getPlayers().size() == snap.playerCount, "the game state lost players");
+        for (int i = 0; i < state.getPlayers().size(); i++) {
+            String name = state.getPlayers().get(i).getName();
+            boolean known = name.equals("first");
+            for (String n: NAMES) known |= n.equals(name);
+            check(known, "game state name came back as \"" + name + "\"");
+        }
+
+        if (failures > 0) System.exit(1);
+        System.out.println("OK");
+    }
+}
@@ -3,16 +3,35 @@
  * Author: Christian Duncan
  * Editors: None
  * A class use to turn on/off debugging output (with given level)
+ * Messages are handed to a background thread through a fixed size ring buffer and written out
+ * from there, so the network and render threads never wait on the output stream.  If the writer
+ * falls so far behind that the ring is full, messages are dropped (and how many is reported).
+ * Messages above the current level are skipped without being built: pass a supplier
+ * (e.g. () -> "Got " + message) or check isEnabled first for anything costly to put together.
  ***************/
 import java.io.PrintStream;
+import java.util.function.Supplier;
 
 public class Debug {
     static private Debug singleton = null;
     static final int DEFAULT_LEVEL = 5;
-    private int level;
-    private PrintStream err;
+    static final int CAPACITY = 4096;   // Messages the ring holds before new ones get dropped
+    private volatile int level;
+    private volatile PrintStream err;
+
+    // The ring buffer: count messages starting at head (guarded by the ring's lock)
+    private final String[] ring = new String[CAPACITY];
+    private final int[] ringLevel = new int[CAPACITY];
+    private int head = 0;
+    private int count = 0;
+    private long dropped = 0;
+
+    // What the writer takes out of the ring each time, written out after the ring is released
+    private final String[] batch = new String[CAPACITY];
+    private final int[] batchLevel = new int[CAPACITY];
+    private final Object writeLock = new Object();
     
-    public static Debug getInstance() {
+    public static synchronized Debug getInstance() {
         if (singleton == null)
             singleton = new Debug();
         return singleton;
@@ -21,17 +40,100 @@ public class Debug {
     private Debug() {
         level = DEFAULT_LEVEL;  // 0, lower=less output, so this only outputs very important messages.
         err = System.err;
+        Thread writer = new Thread(this::writeLoop, "Debug writer");
+        writer.setDaemon(true);
+        writer.start();
+        // Write whatever is still waiting when the program ends (e.g. the message before an exit)
+        Runtime.getRuntime().addShutdownHook(new Thread(this::flush, "Debug flush"));
     }
 
     public int getLevel() { return level; }
     public void setLevel(int level) { this.level = level; }
     public void setStream(PrintStream err) { this.err = err; }
     public PrintStream getStream() { return this.err; }
+
+    /**
+     * @returns true if messages of the given level are being output
+     **/
+    public boolean isEnabled(int level) { return this.level >= level; }
+
     public void println(int level, String message) {
         if (this.level >= level) {
-            synchronized (err) {
-                err.println("DEBUG (" + level + "): " + message);
+            enqueue(level, message);
+        }
+    }
+
+    /**
+     * Output a message, only building it if the level is being output
+     **/
+    public void println(int level, Supplier<String> message) {
+        if (this.level >= level) {
+            enqueue(level, message.get());
+        }
+    }
+
+    /**
+     * Write out all the waiting messages now (on the caller's thread)
+     **/
+    public void flush() {
+        drain();
+    }
+
+    private void enqueue(int level, String message) {
+        synchronized (ring) {
+            if (count == CAPACITY) {
+                dropped++;
+                return;
+            }
+            int tail = (head + count) % CAPACITY;
+            ring[tail] = message;
+            ringLevel[tail] = level;
+            count++;
+            if (count == 1) ring.notify();   // The writer waits only when the ring is empty
+        }
+    }
+
+    // Wait for messages and write them out, forever
+    private void writeLoop() {
+        while (true) {
+            try {
+                synchronized (ring) {
+                    while (count == 0 && dropped == 0) ring.wait();
+                }
+            } catch (InterruptedException e) {
+                return;
+            }
+            drain();
+        }
+    }
+
+    // Take everything out of the ring, then write it without holding the ring
+    private void drain() {
+        synchronized (writeLock) {
+            int n;
+            long lost;
+            synchronized (ring) {
+                n = count;
+                for (int i = 0; i < n; i++) {
+                    int at = (head + i) % CAPACITY;
+                    batch[i] = ring[at];
+                    batchLevel[i] = ringLevel[at];
+                    ring[at] = null;
+                }
+                head = (head + n) % CAPACITY;
+                count = 0;
+                lost = dropped;
+                dropped = 0;
+            }
+            PrintStream out = err;
+            if (lost > 0) {
+                out.println("DEBUG: " + lost + " messages dropped, output could not keep up");
+            }
+            for (int i = 0; i < n; i++) {
+                out.println("DEBUG (" + batchLevel[i] + "): " + batch[i]);
+                batch[i] = null;
             }
+            out.flush();
         }
     }
 }
@@ -0,0 +1,50 @@
+/***************
+ * Frame
+ * Spring 21: CSC340
+ * One encoded message, ready to be written to any number of connections.
+ * The bytes are never changed after construction, so the same Frame can be
+ * shared by every connection (e.g. one game state snapshot sent to all clients).
+ ***************/
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+
+public final class Frame {
+    private final byte[] data;   // Complete frame, length prefix included
+
+    private Frame(byte[] data) {
+        this.data = data;
+    }
+
+    /**
+     * Encode a message into a frame
+     * @param message The message to encode (see MessageCodec)
+     **/
+    public static Frame of(Object message) throws IOException {
+        return new Frame(MessageCodec.encode(message));
+    }
+
+    /**
+     * Encode the changes between two snapshots into a frame (see MessageCodec.encodeDelta)
+     **/
+    public static Frame delta(Snapshot base, Snapshot snap) throws IOException {
+        return new Frame(MessageCodec.encodeDelta(base, snap));
+    }
+
+    // Number of bytes in the frame
+    public int length() { return data.length; }
+
+    /**
+     * Write the frame to the given stream (caller is responsible for flushing)
+     **/
+    public void writeTo(OutputStream out) throws IOException {
+        out.write(data);
+    }
+
+    /**
+     * @returns A read-only view of the frame's bytes
+     **/
+    public ByteBuffer asByteBuffer() {
+        return ByteBuffer.wrap(data).asReadOnlyBuffer();
+    }
+}
@@ -6,51 +6,136 @@
  * This is the Game Engine for the Networm game
  ***************/
 import java.io.IOException;
+import java.nio.file.Path;
 import java.util.ArrayList;
 import java.awt.Color;
-import java.io.*;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
+import java.util.concurrent.locks.LockSupport;
+import java.util.function.IntConsumer;
+import java.util.function.IntSupplier;
 
 public class GameEngine implements Runnable {
     public static final int DEFAULT_PORT = 1340;
+    public static final int TICK_RATE = 60;   // Ticks per second
+    public static final long TICK_NANOS = 1000000000L / TICK_RATE;   // Length of a tick
+    public static final double TICK_SECONDS = 1.0 / TICK_RATE;
+    public static final int MAX_CATCH_UP_TICKS = 5;   // Most missed ticks run back to back before skipping
+    public static final int PARALLEL_CHUNK = 32;      // Fewest players handed to one task in a parallel tick
+    // Fewest players for a tick to be split up at all, unless set otherwise (setParallelMinPlayers,
+    // or the networm.parallelMinPlayers system property).  Handing each phase to the pool costs
+    // about 0.1-0.2 ms (waking the workers), while the work split up is about 0.3 us a player, so
+    // with 4 threads it should start to pay off at around 2000 players.  Those were measured on one
+    // processor: measure on the server's own hardware and set it from that.
+    public static final int DEFAULT_PARALLEL_MIN_PLAYERS = 2000;
     GameState gameState;
     Debug debug;
     boolean done; // is game done
-    double snackDensity;
+    long tick;  // Number of ticks run so far
+    long completedTick;  // Last tick fully done (guarded by tickLock)
+    final Object tickLock = new Object();  // Notified at the end of every tick
+    SpatialGrid bodyGrid;   // Player cells bucketed by position, rebuilt every tick
+    int[] bodyStart;        // First bodyGrid entry of each player (plus one past the last)
+    int[] hit;              // Grid entry each player's head ran into this tick (or -1)
+    GameState.Cell[] snackHit;  // Snack each player's head ran into this tick (or null)
+    ForkJoinPool pool;      // Runs the parallel parts of a tick (null to run the whole tick on the engine thread)
+    volatile int parallelMinPlayers;  // Fewest players for the pool to be used
+    volatile PlayerInput[] input;  // Latest input of each player, taken at the start of every tick
+    final ConcurrentLinkedQueue<Runnable> joins = new ConcurrentLinkedQueue<>();  // Joins and leaves asked for, done at the start of the next tick
+    volatile Snapshot published;   // Snapshot of the last published tick (never changed once published)
+    volatile int publishInterval = 1;  // Ticks between snapshots published (the ticks that are a multiple of it)
+    Histogram tickTime;     // How long each tick takes, and each phase of it (nanoseconds)
+    Histogram moveTime;
+    Histogram spawnTime;
+    Histogram collideTime;
+    Histogram purgeTime;
+    Histogram publishTime;
+    ReplayLog replay;       // Where the game is being recorded to (null if it isn't)
 
     public GameEngine() {
-        this.gameState = new GameState();
+        this(1);
+    }
+
+    /**
+     * @param tickThreads Number of threads to run each tick on.  With more than one (and more than
+     *                    one processor), once there are parallelMinPlayers players moving
+     *                    the players and the collision checks are split up across a ForkJoinPool.
+     **/
+    public GameEngine(int tickThreads) {
+        this(tickThreads, GameState.DEFAULT_SIZE);
+    }
+
+    /**
+     * @param tickThreads Number of threads to run each tick on
+     * @param worldSize Width and height of the world.  A world bigger than the default is
+     *                  a lazy one: only the chunks near players are kept (see GameState).
+     **/
+    public GameEngine(int tickThreads, double worldSize) {
+        this.gameState = new GameState(worldSize, worldSize, worldSize > GameState.DEFAULT_SIZE);
         this.debug = Debug.getInstance();
         this.done = false;
-        this.snackDensity = 0.01;
+        this.bodyGrid = new SpatialGrid(4.0);
+        this.bodyStart = new int[1];
+        this.hit = new int[1];
+        this.parallelMinPlayers = Integer.getInteger("networm.parallelMinPlayers", DEFAULT_PARALLEL_MIN_PLAYERS);
+        this.snackHit = new GameState.Cell[1];
+        if (tickThreads > 1 && Runtime.getRuntime().availableProcessors() > 1) {
+            this.pool = new ForkJoinPool(tickThreads);
+        } else if (tickThreads > 1) {
+            debug.println(2, "(GameEngine) Only one processor, running each tick on one thread");
+        }
+        this.input = new PlayerInput[0];
+        this.published = Snapshot.of(gameState, 0);
+
+        Metrics metrics = Metrics.getInstance();
+        this.tickTime = metrics.histogram("tick.total");
+        this.moveTime = metrics.histogram("tick.move");
+        this.spawnTime = metrics.histogram("tick.spawn");
+        this.collideTime = metrics.histogram("tick.collide");
+        this.purgeTime = metrics.histogram("tick.purge");
+        this.publishTime = metrics.histogram("tick.publish");
+        metrics.gauge("engine.tick", () -> published.tick);
+        metrics.gauge("engine.players", () -> published.getPlayerCount());
+        metrics.gauge("engine.snacks", () -> published.getSnackCount());
+        metrics.gauge("engine.chunks", () -> gameState.getActiveChunkCount());
     }
 
      /**
-      * Return a (deep) clone of the game state.
-      * Thus any changes to the game state must be made through the game server.
+      * Get the latest published snapshot of the game.
+      * The engine publishes a new immutable snapshot at the end of every publishInterval-th tick,
+      * so this is just a volatile read: no lock, and no waiting for a tick in progress.
       **/
-     public GameState getGameState() {
-       try {
-         byte[] byteCopy = getGameStateBinary();
-         ObjectInputStream in = new ObjectInputStream(new ByteArrayInputStream(byteCopy)); // NullPointerException Occuring here and line 418 in App
-         GameState copy = (GameState) (in.readObject());
-         return copy;
-       } catch (ClassNotFoundException | IOException e) {
-         debug.println(1, "[GameEngine.gGS]: Coding Error!");
-         return null;
-       }
-       
+     public Snapshot getSnapshot() {
+       return published;
      }
-     //returns the gameState in a byte array form
+
+     /**
+      * Only publish a snapshot every so many ticks (on the ticks that are a multiple of it).
+      * A snapshot copies the whole game, so there is no point making one for ticks nobody
+      * reads (the server only sends every few ticks).
+      * @param ticks Ticks between snapshots (1, the default, for every tick)
+      **/
+     public void setPublishInterval(int ticks) {
+       publishInterval = Math.max(1, ticks);
+     }
+
+     /**
+      * Only split a tick across the threads once there are this many players (with fewer,
+      * handing the work out costs more than it saves).  Defaults to DEFAULT_PARALLEL_MIN_PLAYERS,
+      * or the networm.parallelMinPlayers system property.
+      * @param players Fewest players (0 to always split it up)
+      **/
+     public void setParallelMinPlayers(int players) {
+       parallelMinPlayers = Math.max(0, players);
+     }
+
+     //returns the gameState in a byte array form (the same bytes the network frame holds)
      public byte[] getGameStateBinary() {
        try {
-         ByteArrayOutputStream bout = new ByteArrayOutputStream();
-         ObjectOutputStream out = new ObjectOutputStream(bout);
-         synchronized(gameState) {
-           out.writeObject(gameState);
+         synchronized(this) {
+           return MessageCodec.encode(gameState);
          }
-         out.close();
-         bout.close();
-         return bout.toByteArray();
        } catch (IOException e) {
          debug.println(1, "[GameEngine.gGSB]: Coding Error!");
          return null;
@@ -60,87 +145,362 @@ public class GameEngine implements Runnable {
     public synchronized int addPlayer(String name, Color color) {
         
       int i = gameState.addPlayer(name, color);
+      // The player's input slot must exist before anyone knows the player's id
+      if (i >= input.length) {
+          PlayerInput[] more = java.util.Arrays.copyOf(input, Math.max(i+1, input.length*2));
+          for (int j = input.length; j < more.length; j++) more[j] = new PlayerInput();
+          input = more;
+      }
+      // Forget anything left over from a removed player that had this id
+      input[i].takeDirection();
+      input[i].takeSpeed();
+      if (replay != null) replay.join(i, name, color);
       System.out.println("adding player now");
       gameState.display(System.out);
       return i;
     }
 
+    /**
+     * Add a player at the start of the next tick, instead of waiting for the engine to finish
+     * the one it is running (for the server's I/O threads, which serve many clients at once).
+     * @param name The player's name
+     * @param color The player's color
+     * @param joined Given the new player's id, on the engine's thread at the start of the tick
+     **/
+    public void requestJoin(String name, Color color, IntConsumer joined) {
+        joins.add(() -> joined.accept(addPlayer(name, color)));
+    }
+
+    /**
+     * Remove a player at the start of the next tick (after any join asked for before this),
+     * without waiting for the engine.
+     * @param player Gives the player (id) to remove, asked on the engine's thread then (-1 for none)
+     **/
+    public void requestLeave(IntSupplier player) {
+        joins.add(() -> {
+            int p = player.getAsInt();
+            if (p >= 0) removePlayer(p);
+        });
+    }
+
+    /**
+     * Remove a player from the game (e.g. when its client disconnects).
+     * Its id may be given to a player added later.
+     * @param p The player (id) to remove
+     **/
+    public synchronized void removePlayer(int p) {
+        if (gameState.removePlayer(p) && replay != null) replay.leave(p);
+    }
+
+    /**
+     * Start recording the game to a replay log (see ReplayLog), from the next tick on
+     * @param path The file to record to (replaced if it is there)
+     **/
+    public synchronized void startRecording(Path path) throws IOException {
+        stopRecording();
+        replay = new ReplayLog(path);
+        debug.println(2, "(GameEngine) Recording the game to " + path);
+    }
+
+    /**
+     * Stop recording the game (does nothing if it isn't being recorded)
+     **/
+    public synchronized void stopRecording() {
+        if (replay == null) return;
+        replay.close();
+        replay = null;
+    }
+
+    /**
+     * Carry on from the given game instead (used to play a replay)
+     * @param state The game
+     * @param tick The number of ticks the game has run
+     **/
+    synchronized void load(GameState state, long tick) {
+        gameState = state;
+        this.tick = tick;
+        // New input slots for the ids in the game (forgetting any input left for the old one)
+        PlayerInput[] in = new PlayerInput[state.getPlayerIDLimit()];
+        for (int id = 0; id < in.length; id++) in[id] = new PlayerInput();
+        input = in;
+        published = Snapshot.of(gameState, tick);
+    }
+
     /**
      * Set a player p's direction to dx and dy.
-     * This moves all cells in that direction
-     * @param p The player (index) to move
+     * This moves all cells in that direction (from the next tick on).
+     * Never waits for the engine: the input is just left for the next tick to pick up.
+     * @param p The player (id) to move
      * @param dx The amount to move in the x direction
      * @param dy The amount to move in the y direction
      **/
-    public synchronized void setPlayerDirection(int p, double dx, double dy) {
-        gameState.setPlayerDirection(p, dx, dy);
+    public void setPlayerDirection(int p, double dx, double dy) {
+        PlayerInput[] in = input;
+        if (p < 0 || p >= in.length) return;  // No such player
+        in[p].setDirection(dx, dy);
     }
 
       /**
-     * Set a player p's speed
-     * @param p The player (index) to move
+     * Set a player p's speed (from the next tick on, never waits for the engine)
+     * @param p The player (id) to move
      * @param s New speed
      **/
-    public synchronized void setPlayerSpeed(int p, double s) {
-        gameState.setPlayerSpeed(p, s);
+    public void setPlayerSpeed(int p, double s) {
+        PlayerInput[] in = input;
+        if (p < 0 || p >= in.length) return;  // No such player
+        in[p].setSpeed(s);
+    }
+
+    // Apply the latest input of every player (called at the start of a tick)
+    // (and record it, when recording)
+    private void applyInput() {
+        PlayerInput[] in = input;
+        ReplayLog replay = this.replay;
+        if (replay != null) replay.beginTick();
+        ArrayList<GameState.Player> player = gameState.getPlayers();
+        for (int i = 0; i < player.size(); i++) {
+            GameState.Player pl = player.get(i);
+            if (pl.id >= in.length) continue;
+            long d = in[pl.id].takeDirection();
+            if (d != PlayerInput.NONE) pl.setDirection(PlayerInput.getDX(d), PlayerInput.getDY(d));
+            double s = in[pl.id].takeSpeed();
+            if (!Double.isNaN(s)) pl.setSpeed(s);
+            if (replay != null && (d != PlayerInput.NONE || !Double.isNaN(s))) {
+                replay.input(pl.id, (d != PlayerInput.NONE ? ReplayLog.INPUT_DIRECTION : 0) |
+                                    (!Double.isNaN(s) ? ReplayLog.INPUT_SPEED : 0), d, s);
+            }
+        }
+        if (replay != null) replay.endTick(tick);
     }
 
     // main run method and runs instance of slither
+    // The game runs in fixed steps of TICK_NANOS, timed with System.nanoTime.  If the engine
+    // falls behind it runs the missed ticks back to back, but at most MAX_CATCH_UP_TICKS at once
+    // (anything more is skipped) so it can't spiral further and further behind.
     public void run() {
          // First add a lot of random food cells
          for (int i = 0; i < 100; i++)
              gameState.addRandomSnack();
 
-         long currentTime = System.currentTimeMillis();
+         long nextTick = System.nanoTime();
          while (!gameState.isDone()) {
-             debug.println(10, "(GameEngine.run) Executing...");
-             // Compute elapsed time since last iteration
-             long newTime = System.currentTimeMillis();
-             long delta = newTime - currentTime;
-             currentTime = newTime;
-
-             // Move all of the players
-             synchronized (this) {
-                 gameState.moveAllPlayers(delta/1000.0);  // Speed to move in
+             long now = System.nanoTime();
+             if (now < nextTick) {
+                 LockSupport.parkNanos(nextTick - now);
+                 continue;
              }
 
-             // Add some more food.  (Could do this periodically instead but for now ALL the time)
-             if(gameState.getSnacks().size()<gameState.maxX*gameState.maxY*snackDensity){
-                synchronized (this) {
-                gameState.addRandomSnack();
-            }
+             // Run all the ticks that are due (up to a limit)
+             int ticks = 0;
+             while (nextTick <= now && ticks < MAX_CATCH_UP_TICKS) {
+                 step();
+                 nextTick += TICK_NANOS;
+                 ticks++;
              }
-             
+             if (nextTick <= now) {
+                 long missed = (now - nextTick)/TICK_NANOS + 1;
+                 debug.println(2, "(GameEngine.run) Running behind, skipping " + missed + " ticks");
+                 nextTick += missed*TICK_NANOS;
+             }
+         }
+     }
 
-             // Detect all collisions
-             detectCollisions();
+     /**
+      * Run one tick of the game: move, add food, detect collisions.
+      * The whole tick holds the engine lock so nobody sees a half done tick.
+      **/
+     void step() {
+         debug.println(10, "(GameEngine.run) Executing...");
+         synchronized (this) {
+             long start = System.nanoTime();
+             // Add and remove the players asked for since the last tick
+             Runnable join;
+             while ((join = joins.poll()) != null) join.run();
+             if (replay != null && replay.keyframeDue(tick)) replay.keyframe(tick, gameState);
+             tick++;
+             simulate(start);
+
+             // Publish the finished tick for the readers, if it is one they read
+             // (the one part of a tick that makes new objects)
+             if (tick % publishInterval == 0) {
+                 long time = System.nanoTime();
+                 published = Snapshot.of(gameState, tick);
+                 publishTime.recordSince(time);
+             }
+             tickTime.recordSince(start);
+         }
 
-             try {
-                 Thread.sleep(16);
-             } catch (Exception e) { }
+         // Let anyone waiting know the tick is done
+         synchronized (tickLock) {
+             completedTick = tick;
+             tickLock.notifyAll();
+         }
+     }
+
+     /**
+      * Run the game part of a tick: take the input, move, add food, detect collisions.
+      * Once the game has been running a little while this makes no new objects, so it
+      * leaves nothing for the garbage collector (AllocationCheck checks it stays that way).
+      * @param start When the tick started (System.nanoTime)
+      **/
+     synchronized void simulate(long start) {
+         applyInput();
+
+         // Move all of the players (each one only touches its own body)
+         forPlayers(gameState.getPlayers().size(), moveRange);
+         long time = moveTime.recordSince(start);
+
+         // Wake up the chunks players have come near, and add some more food to them
+         gameState.updateChunks();
+         gameState.spawnSnacks();
+         gameState.reserveCells();
+         spawnTime.recordSince(time);
+
+         // Detect all collisions (times itself, less the purge)
+         detectCollisions();
+     }
+
+     /**
+      * Wait until the given tick has completed
+      * @param t The tick to wait for
+      * @returns The last completed tick (t or later)
+      **/
+     public long awaitTick(long t) throws InterruptedException {
+         synchronized (tickLock) {
+             while (completedTick < t) tickLock.wait();
+             return completedTick;
          }
      }
 
-     private synchronized void detectCollisions() {
+     /**
+      * Detect all collisions of the player heads with the snacks and the other players.
+      * The bodies are put in a spatial grid each tick, and each chunk keeps a grid of its snacks
+      * (only made again when they change), so a head only checks the cells in the buckets
+      * around it instead of every cell in the game.
+      * The heads are looked up first (in parallel when there is a pool), then the results are
+      * applied in player order, so how many threads there are never changes the outcome.
+      * Bodies: a head that touches another player's body respawns (at most once a tick).  For the
+      * heads after it, a player that respawned earlier in the tick has its old body gone (a head
+      * that hit it looks again) and its new cells there instead.
+      * Snacks: a head eats at most one snack a tick.  If it touches several, the one eaten is the
+      * first found going through the chunks (and each chunk's grid) in order.  If an earlier
+      * player ate it first, the head looks again.
+      * The outcome is the same every time (replays depend on it), but it isn't exactly what the
+      * old brute force check gave: that ate every snack a head touched, in list order, and could
+      * respawn a player again if its new head landed on someone.
+      **/
+     synchronized void detectCollisions() {
+             long start = System.nanoTime();
              ArrayList<GameState.Player> player = gameState.getPlayers();
-             ArrayList<GameState.Cell> snacks =  gameState.getSnacks();
+             int size = player.size();
+             if (hit.length < size) hit = new int[size*2];
+             if (snackHit.length < size) snackHit = new GameState.Cell[size*2];
+             int[] hit = this.hit;
+             GameState.Cell[] snackHit = this.snackHit;
 
              // First check for collisions with food
-             for (GameState.Player p: player) p.collisions(snacks, true);
+             gameState.indexSnacks();
+             forPlayers(size, snackLookup);
+             for (int i = 0; i < size; i++) {
+                 GameState.Player p = player.get(i);
+                 GameState.Cell s = snackHit[i];
+                 snackHit[i] = null;
+                 if (s != null && s.r == 0) {
+                     // An earlier player got it first
+                     s = gameState.findSnack(p.getX(0), p.getY(0), p.getR(0));
+                 }
+                 if (s != null) p.eat(s);
+             }
+             long purgeStart = System.nanoTime();
              gameState.purgeSnacks();
+             long purgeEnd = purgeTime.recordSince(purgeStart);
 
              // Now check for collisions with all the players (not themselves)
-             int size = player.size();
+             if (bodyStart.length < size + 1) bodyStart = new int[size*2 + 1];
+             bodyGrid.clear();
+             for (int i = 0; i < size; i++) {
+                 bodyStart[i] = bodyGrid.size();
+                 GameState.Player p = player.get(i);
+                 for (int j = 0; j < p.size(); j++) {
+                     bodyGrid.insert(p.getX(j), p.getY(j), p.getR(j), i, j);
+                 }
+             }
+             bodyStart[size] = bodyGrid.size();
+             forPlayers(size, bodyLookup);
+             int looked = bodyGrid.size();   // Entries after this are the new bodies of players that respawned
              for (int i = 0; i < size; i++) {
                  GameState.Player p = player.get(i);
-                 for (int j = 0; j < size; j++) {
-                     if (i != j) {
-                       GameState.Player q = player.get(j);
-                       p.collisions(q);  // Compute collisions between these two players
+                 int e = hit[i];
+                 if (e >= 0 && bodyGrid.isRemoved(e)) {
+                     // That body respawned earlier this tick
+                     e = bodyGrid.findFirst(p.getX(0), p.getY(0), p.getR(0), i);
+                 } else if (e < 0 && bodyGrid.size() > looked) {
+                     // Not there when it was looked up: the new bodies since
+                     e = bodyGrid.findFirst(looked, bodyGrid.size(), p.getX(0), p.getY(0), p.getR(0), i);
+                 }
+                 if (e >= 0) {
+                     p.respawn();
+                     // Old body is gone, nobody else can run into it this tick, but they can the new one
+                     bodyGrid.remove(bodyStart[i], bodyStart[i+1]);
+                     for (int j = 0; j < p.size(); j++) {
+                         bodyGrid.insert(p.getX(j), p.getY(j), p.getR(j), i, j);
                      }
                  }
-                 // And purge this player's dead cells at end
-                 // TODO: REMOVE DEAD PLAYERS
              }
+             collideTime.record(purgeStart - start + System.nanoTime() - purgeEnd);
+    }
+
+    // Some work on the players from .. to-1
+    interface PlayerRange {
+        void run(int from, int to);
+    }
+
+    // The work split up across the pool, made once so a tick doesn't make new ones
+    private final PlayerRange moveRange = (from, to) -> {
+        ArrayList<GameState.Player> player = gameState.getPlayers();
+        for (int i = from; i < to; i++) player.get(i).move(TICK_SECONDS);
+    };
+    private final PlayerRange snackLookup = (from, to) -> {
+        ArrayList<GameState.Player> player = gameState.getPlayers();
+        for (int i = from; i < to; i++) {
+            GameState.Player p = player.get(i);
+            snackHit[i] = gameState.findSnack(p.getX(0), p.getY(0), p.getR(0));
+        }
+    };
+    private final PlayerRange bodyLookup = (from, to) -> {
+        ArrayList<GameState.Player> player = gameState.getPlayers();
+        for (int i = from; i < to; i++) {
+            GameState.Player p = player.get(i);
+            hit[i] = bodyGrid.findFirst(p.getX(0), p.getY(0), p.getR(0), i);
+        }
+    };
+
+    // Run the work over players 0 .. n-1: split up across the pool if there is one and enough
+    // players for it to pay off (see parallelMinPlayers), otherwise right here
+    private void forPlayers(int n, PlayerRange work) {
+        if (pool == null || n < parallelMinPlayers) work.run(0, n);
+        else pool.invoke(new RangeTask(work, 0, n));
+    }
+
+    // Splits a range of players in halves until the pieces are small enough to just run
+    static class RangeTask extends RecursiveAction {
+        final PlayerRange work;
+        final int from;
+        final int to;
+
+        RangeTask(PlayerRange work, int from, int to) {
+            this.work = work;
+            this.from = from;
+            this.to = to;
+        }
+
+        protected void compute() {
+            if (to - from <= PARALLEL_CHUNK) {
+                work.run(from, to);
+                return;
+            }
+            int mid = (from + to) >>> 1;
+            invokeAll(new RangeTask(work, from, mid), new RangeTask(work, mid, to));
+        }
     }
 }
@@ -9,14 +9,46 @@ import java.io.IOException;
 import java.net.ServerSocket;
 import java.net.Socket;
 import java.awt.Color;
-import java.util.HashSet;
+import java.awt.geom.Rectangle2D;
+import java.util.HashMap;
 import java.util.Set;
-import java.io.ObjectOutputStream;
-import java.io.ObjectInputStream;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.LongAdder;
+import java.nio.ByteBuffer;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.SocketChannel;
+import java.nio.file.Paths;
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
 public class GameServer implements Runnable {
     public static final int DEFAULT_PORT = 1340;
-    public static final int GAME_REFRESH_RATE=10; //in ms
+    public static final int DEFAULT_SEND_INTERVAL=3; //ticks between snapshots sent to the clients (20 a second, the clients interpolate)
+    public static final int MAX_DELTA_TICKS=32; //clients further behind than this get a full snapshot
+    public static final double AREA_OF_INTEREST=2.0; //players get everything in a square this many times their view
+    public static final int SPECTATOR_PUSH_INTERVAL=5; //spectators get the whole world, but only every few pushes
+    public static final int OUTBOUND_QUEUE_SIZE=4; //frames waiting for a connection's writer before stale snapshots get dropped
+    public static final int STATS_INTERVAL=500; //pushes between printing the connection queue stats
+    public static final int IO_THREADS=Math.min(4, Runtime.getRuntime().availableProcessors()); //threads used in NIO mode
+    public static final int METRICS_PORT_OFFSET=1; //the metrics are served (to this machine only) on the port after the game's
+    //how connections are served: a thread per connection, or a few selector threads for all of them
+    //(VIRTUAL is a thread per connection too, but virtual threads, and the writers run on them as well)
+    public enum Mode { THREAD, NIO, VIRTUAL }
+    Mode mode;
+    int sendInterval; //ticks between snapshots sent to the clients
+    ExecutorService executor; //runs the connections and their writers in VIRTUAL mode
     Set<Connection> connection; // Set of client connections
+    SnapshotHistory history; // Recent snapshots sent, deltas are made against these
+    AtomicInteger nextConnection; // Number given to the next connection (for its metrics)
+    Metrics metrics;
+    Histogram pushTime; // Time to queue a snapshot for every connection
+    Histogram encodeTime; // Time to encode one snapshot frame (full or delta)
+    LongAdder framesOut; // Frames and bytes written to all the connections
+    LongAdder bytesOut;
     GameEngine gameEngine;
     Debug debug;
     int port;
@@ -27,10 +59,39 @@ public class GameServer implements Runnable {
     }
     //constructor that inisializes port, gameEngine, Debug, Connection and starts game engine thread
     public GameServer(int port) {
+        this(port, Mode.THREAD);
+    }
+    //constructor that also picks how the connections are served
+    public GameServer(int port, Mode mode) {
+        this(port, mode, 1);
+    }
+    //constructor that also picks how many threads the game engine runs each tick on
+    public GameServer(int port, Mode mode, int tickThreads) {
+        this(port, mode, tickThreads, GameState.DEFAULT_SIZE);
+    }
+    //constructor that also picks the size of the world (bigger than the default only keeps the chunks near players)
+    public GameServer(int port, Mode mode, int tickThreads, double worldSize) {
         this.port = port;
-        this.gameEngine = new GameEngine();
+        this.mode = mode;
+        this.sendInterval = DEFAULT_SEND_INTERVAL;
+        this.gameEngine = new GameEngine(tickThreads, worldSize);
+        gameEngine.setPublishInterval(sendInterval);
         this.debug = Debug.getInstance();
-        this.connection = new HashSet<>();
+        this.connection = ConcurrentHashMap.newKeySet(); //added to by the connection threads while the pusher goes through it
+        this.history = new SnapshotHistory(MAX_DELTA_TICKS);
+        this.nextConnection = new AtomicInteger();
+        this.metrics = Metrics.getInstance();
+        this.pushTime = metrics.histogram("push.total");
+        this.encodeTime = metrics.histogram("push.encode");
+        this.framesOut = metrics.counter("net.out.frames");
+        this.bytesOut = metrics.counter("net.out.bytes");
+        metrics.gauge("server.connections", () -> connection.size());
+        metrics.registerJmx();
+        if (mode == Mode.VIRTUAL) {
+            if (!VirtualThreads.isAvailable())
+                debug.println(1,"[Game Server] No virtual threads on this JVM, using a pool of platform threads");
+            this.executor = VirtualThreads.newExecutor();
+        }
         //Starts the game engine at construction time
         startServer();
     }
@@ -48,6 +109,13 @@ public class GameServer implements Runnable {
      **/
     public void run() {
         debug.println(1,"[Game Server] WELCOME!  Starting up...");
+        metrics.startEndpoint(port + METRICS_PORT_OFFSET);
+        if (mode == Mode.NIO) {
+            //a few selector threads serve every connection
+            createPusher();
+            new NioServer(this, port, IO_THREADS).run();
+            return;
+        }
         try {
             // Create a server socket bound to the given port
             ServerSocket serverSocket = new ServerSocket(port);
@@ -66,33 +134,115 @@ public class GameServer implements Runnable {
         }
 
     }
-    //creates a new thread with the purpose of pushing the game state every so often
+    //set how many ticks go by between snapshots sent to the clients
+    public void setSendInterval(int ticks){
+        this.sendInterval = Math.max(1, ticks);
+        gameEngine.setPublishInterval(sendInterval); //no need for snapshots of the ticks in between
+    }
+    //creates a new thread with the purpose of pushing the game state every sendInterval ticks
     private void createPusher(){
         Thread t=new Thread(){
             public void run(){
+                HashMap<Long,Frame> frames=new HashMap<>(); //spectator frames encoded for this snapshot, by base tick
+                long pushes=0;
+                long lastTick=0;
                 while(!done){
-                    GameState currentState=gameEngine.getGameState();
-                    for(Connection c: connection){
-                        c.transmitMessage(currentState);
-                    }
-                    //debug.println(3, "Pushing a message (soon will push game state)");
+                    //wait for the next tick to send (nothing new to send before then)
                     try{
-                        Thread.sleep(GAME_REFRESH_RATE);
+                        lastTick=gameEngine.awaitTick(lastTick+sendInterval);
                     }
                     catch(InterruptedException e){
+                        continue;
+                    }
+                    long start=System.nanoTime();
+                    Snapshot currentState=gameEngine.getSnapshot();
+                    lastTick=currentState.getTick(); //the last tick published, the next one is sendInterval on
+                    history.add(currentState);
+                    frames.clear();
+                    for(Connection c: connection){
+                        Frame frame;
+                        int id=c.playerID; //read once, the connection may be closing meanwhile
+                        if(id<0){
+                            //spectators get a coarse view of the whole world, every spectator with the same base gets the same bytes
+                            if(pushes%SPECTATOR_PUSH_INTERVAL!=0) continue;
+                            frame=snapshotFrame(currentState, history, c.ackTick, frames);
+                        }
+                        else{
+                            //players only get what is around them
+                            Snapshot view=currentState.filter(areaOfInterest(currentState, id), id);
+                            c.sent.add(view);
+                            frame=snapshotFrame(view, c.sent, c.ackTick, null);
+                        }
+                        //just queued, each connection's own writer sends it so a slow socket doesn't hold up everyone else
+                        if(frame!=null) c.transmitSnapshot(frame);
                     }
+                    pushTime.recordSince(start);
+                    pushes++;
+                    if(pushes%STATS_INTERVAL==0) printStats();
+                    //debug.println(3, "Pushing a message (soon will push game state)");
                 }
             }
         };
         t.start();//start the thread
     }
+    //prints how far behind each connection's writer is
+    private void printStats(){
+        if(!debug.isEnabled(6)) return;
+        for(Connection c: connection){
+            c.printMessage(6, "queue depth "+c.getQueueDepth()+", sent "+c.getSentFrames()+", dropped "+c.getDroppedFrames());
+        }
+    }
+    /**
+     * Get the frame that brings a client from the last snapshot it acknowledged up to this one.
+     * A full snapshot is used if the client hasn't acknowledged anything yet or is too far
+     * behind (its snapshot has dropped out of the history).
+     * @param snapshot The snapshot to send
+     * @param sent The snapshots sent to the client
+     * @param ackTick The last tick the client acknowledged
+     * @param frames Frames already encoded for this snapshot (by base tick, -1 for full), or null
+     **/
+    private Frame snapshotFrame(Snapshot snapshot, SnapshotHistory sent, long ackTick, HashMap<Long,Frame> frames) {
+        Snapshot base = sent.get(ackTick);
+        if (base != null && base.tick > snapshot.tick) base = null;
+        long key = base == null ? -1 : base.tick;
+        Frame frame = frames == null ? null : frames.get(key);
+        if (frame == null) {
+            try {
+                long start = System.nanoTime();
+                frame = base == null ? Frame.of(snapshot) : Frame.delta(base, snapshot);
+                encodeTime.recordSince(start);
+            } catch (IOException e) {
+                debug.println(1, "[GameServer.sF]: Coding Error! " + e.getMessage());
+                return null;
+            }
+            if (frames != null) frames.put(key, frame);
+        }
+        return frame;
+    }
+    /**
+     * The part of the world a player gets sent: the same view the client zooms to, grown into a
+     * square AREA_OF_INTEREST times bigger so it still covers a wide window and a bit of movement.
+     **/
+    static Rectangle2D.Double areaOfInterest(Snapshot snapshot, int playerID) {
+        Rectangle2D.Double view = snapshot.getViewBox(playerID);
+        double size = Math.max(view.width, view.height)*AREA_OF_INTEREST;
+        return new Rectangle2D.Double(view.getCenterX()-size/2, view.getCenterY()-size/2, size, size);
+    }
     //creates a new thread with the client connection
     public void addConnection(Socket clientSocket){
         String name = clientSocket.getInetAddress().toString();
         System.out.println("Game Server: Connecting to client: "+ name );
         Connection c = new Connection(clientSocket,name);
         connection.add(c);
-        c.start(); //start thread
+        if(executor!=null) executor.execute(c); //start virtual thread
+        else new Thread(c).start(); //start thread
+    }
+    //adds a client connection served by one of the NIO server's I/O threads
+    ChannelConnection addConnection(SocketChannel channel, String name, NioServer.IoLoop loop){
+        System.out.println("Game Server: Connecting to client: "+ name );
+        ChannelConnection c = new ChannelConnection(channel,name,loop);
+        connection.add(c);
+        return c;
     }
     /**
      * The main entry point.  It just processes the command line argument
@@ -100,19 +250,74 @@ public class GameServer implements Runnable {
      **/
     public static void main(String[] args) {
         int port = DEFAULT_PORT;
+        Mode mode = Mode.THREAD;
+        int sendInterval = DEFAULT_SEND_INTERVAL;
+        int tickThreads = 1;
+        double worldSize = GameState.DEFAULT_SIZE;
         // Set the port if specified
         if (args.length > 0) {
             try {
                 port = Integer.parseInt(args[0]);
             } catch (NumberFormatException e) {
                 //throws an error if the port is not an integer
-                System.err.println("Usage: java GameServer [PORT]");
+                System.err.println("Usage: java GameServer [PORT] [thread|nio|virtual] [TICKS_PER_SEND] [TICK_THREADS] [WORLD_SIZE] [REPLAY_FILE]");
                 System.err.println("       PORT must be an integer.");
                 System.exit(1);
             }
         }
+        // Set the mode if specified
+        if (args.length > 1) {
+            try {
+                mode = Mode.valueOf(args[1].toUpperCase());
+            } catch (IllegalArgumentException e) {
+                System.err.println("Usage: java GameServer [PORT] [thread|nio|virtual] [TICKS_PER_SEND] [TICK_THREADS] [WORLD_SIZE] [REPLAY_FILE]");
+                System.err.println("       Unknown mode: " + args[1]);
+                System.exit(1);
+            }
+        }
+        // Set the send interval if specified
+        if (args.length > 2) {
+            try {
+                sendInterval = Integer.parseInt(args[2]);
+            } catch (NumberFormatException e) {
+                System.err.println("Usage: java GameServer [PORT] [thread|nio|virtual] [TICKS_PER_SEND] [TICK_THREADS] [WORLD_SIZE] [REPLAY_FILE]");
+                System.err.println("       TICKS_PER_SEND must be an integer.");
+                System.exit(1);
+            }
+        }
+        // Set the number of threads running each tick if specified
+        if (args.length > 3) {
+            try {
+                tickThreads = Integer.parseInt(args[3]);
+            } catch (NumberFormatException e) {
+                System.err.println("Usage: java GameServer [PORT] [thread|nio|virtual] [TICKS_PER_SEND] [TICK_THREADS] [WORLD_SIZE] [REPLAY_FILE]");
+                System.err.println("       TICK_THREADS must be an integer.");
+                System.exit(1);
+            }
+        }
+        // Set the size of the world if specified
+        if (args.length > 4) {
+            try {
+                worldSize = Double.parseDouble(args[4]);
+            } catch (NumberFormatException e) {
+                System.err.println("Usage: java GameServer [PORT] [thread|nio|virtual] [TICKS_PER_SEND] [TICK_THREADS] [WORLD_SIZE] [REPLAY_FILE]");
+                System.err.println("       WORLD_SIZE must be a number.");
+                System.exit(1);
+            }
+        }
         // Create and start the server
-        GameServer s = new GameServer(port);
+        GameServer s = new GameServer(port, mode, tickThreads, worldSize);
+        s.setSendInterval(sendInterval);
+        // Record the game if asked to
+        if (args.length > 5) {
+            try {
+                s.gameEngine.startRecording(Paths.get(args[5]));
+                Runtime.getRuntime().addShutdownHook(new Thread(s.gameEngine::stopRecording));
+            } catch (IOException e) {
+                System.err.println("Could not record the game to " + args[5] + ": " + e.getMessage());
+                System.exit(1);
+            }
+        }
         s.run();
     }
     /**
@@ -120,28 +325,45 @@ public class GameServer implements Runnable {
      * create the input streams and output streams, and will processes the messages
      * the client sends to the server.
      */
-    class Connection extends Thread{
+    class Connection implements Runnable{
         Socket socket;
-        ObjectOutputStream out;
-        ObjectInputStream in;
+        DataOutputStream out;
+        DataInputStream in;
         boolean done;
         String name;
-        int playerID;
+        volatile int playerID; //-1 for a spectator (or once closed)
         Color color;
+        volatile long ackTick; //last snapshot the client acknowledged (-1 for none)
+        SnapshotHistory sent; //views of the world recently sent to this (player) client
+        OutboundQueue outbound; //frames waiting for this connection's writer
+        int number; //this connection's number, its metrics are connection.<number>.*
         public Connection(Socket socket, String name){
             done = false;
             this.socket = socket;
             this.name = name;
             this.playerID=-1;
+            this.ackTick=-1;
+            this.sent=new SnapshotHistory(MAX_DELTA_TICKS);
+            this.outbound=new OutboundQueue(OUTBOUND_QUEUE_SIZE);
+            this.number=nextConnection.getAndIncrement();
+            String prefix="connection."+number+".";
+            metrics.gauge(prefix+"playerID", () -> playerID);
+            metrics.gauge(prefix+"queueDepth", outbound::depth);
+            metrics.gauge(prefix+"framesSent", outbound::sent);
+            metrics.gauge(prefix+"bytesSent", outbound::sentBytes);
+            metrics.gauge(prefix+"framesDropped", outbound::dropped);
         }
         public void run(){
             try {
                 //first get i/o streams for communication to and from the server
-                out = new ObjectOutputStream(socket.getOutputStream());
-                in = new ObjectInputStream(socket.getInputStream());
+                out = new DataOutputStream(new BufferedOutputStream(socket.getOutputStream()));
+                in = new DataInputStream(new BufferedInputStream(socket.getInputStream()));
+                //the writer sends whatever gets queued for this connection
+                if(executor!=null) executor.execute(this::writeLoop);
+                else new Thread(this::writeLoop).start();
                 //loops reading in messages until connection is stopped
                 while (!done) {
-                    Object message = in.readObject();
+                    Object message = MessageCodec.readMessage(in);
                     if(message == null){
                         printMessage(1,"Line terminated finished");// level 1
                         done = true;
@@ -153,13 +375,12 @@ public class GameServer implements Runnable {
                 printMessage(1,"I/O error while communicating with Client"); //lvl 1
                 printMessage(1," Message: " + e.getMessage()); //lvl 1
             }
-            catch (ClassNotFoundException e) {
-                debug.println(1, " Coding Error: Client transmitted unrecognized Object");
-            }
 
             try{
                 //closses client and its connections
                 printMessage(1,"Client is closing down");
+                outbound.close();
+                leave();
                 if(in != null) in.close();
                 if(out != null) out.close();
                 if(socket != null) socket.close();
@@ -170,18 +391,26 @@ public class GameServer implements Runnable {
             socket=null;
         }
         //processes a message that has been sent through this connection
-        private void processMessage(Object message) {
+        void processMessage(Object message) {
             // process the line according to the type of message we receive
             if(message instanceof JoinMessage){
+                metrics.counter("net.in.join").increment();
                 processJoinMessage((JoinMessage)message);
             }
             else if(message instanceof MovePlayerMessage){
+                metrics.counter("net.in.move").increment();
                 processMovePlayerMessage((MovePlayerMessage)message);
             }
             else if(message instanceof BoostPlayerMessage){
+                metrics.counter("net.in.boost").increment();
                 processBoostPlayerMessage((BoostPlayerMessage)message);
             }
+            else if(message instanceof AckMessage){
+                metrics.counter("net.in.ack").increment();
+                processAckMessage((AckMessage)message);
+            }
             else{
+                metrics.counter("net.in.other").increment();
                 printMessage(3, "Unrecognized message: "+message);
             }
         }
@@ -189,9 +418,12 @@ public class GameServer implements Runnable {
         private void processJoinMessage(JoinMessage message) {
             this.name=message.name;
             this.color=message.color;
-            this.playerID= gameEngine.addPlayer(this.name,this.color);
-            //let the client know that it has been registered in the server
-            transmitMessage(new JoinResponseMessage(this.name, this.playerID));
+            //the engine adds the player at the start of its next tick, so the I/O thread never waits for it
+            gameEngine.requestJoin(this.name,this.color, id -> {
+                this.playerID=id;
+                //let the client know that it has been registered in the server
+                transmitMessage(new JoinResponseMessage(this.name, id));
+            });
         }
         private void processMovePlayerMessage(MovePlayerMessage message){
             if(this.playerID<0){
@@ -207,24 +439,177 @@ public class GameServer implements Runnable {
             if(message.speed<GameState.MIN_SPEED||message.speed>2*GameState.MIN_SPEED) return;
             gameEngine.setPlayerSpeed(this.playerID, message.speed);
         }
+        //the client has applied this snapshot, so later deltas can be made against it
+        private void processAckMessage(AckMessage message){
+            if(message.tick>ackTick) ackTick=message.tick;
+        }
         //print message
         public void printMessage(int lvl,String m) {
-            debug.println(lvl,"["+ name +"]:" + m);
+            if(debug.isEnabled(lvl)) debug.println(lvl,"["+ name +"]:" + m);
         }
         public void transmitMessage(Object message) {
-            if(out==null)return;
             try {
-                synchronized(out) {
-                    out.reset();
-                    out.writeObject(message);
-                    out.flush();
+                transmitFrame(Frame.of(message));
+            }
+            catch (IOException e) {
+                debug.println(1, "Coding Error: Cannot encode message "+message);
+            }
+        }
+        //queues an already encoded frame, the same frame may be shared by many connections.
+        //these are control frames (e.g. join responses) and are never dropped
+        public void transmitFrame(Frame frame) {
+            outbound.offerControl(frame);
+            frameQueued();
+        }
+        //queues a snapshot frame, it may be dropped for a newer one if the writer falls behind
+        public void transmitSnapshot(Frame frame) {
+            outbound.offerSnapshot(frame);
+            frameQueued();
+        }
+        //called after a frame is queued (the writer thread is already waiting on the queue)
+        void frameQueued() {
+        }
+        //the writer: sends the queued frames, flushing whenever the queue runs dry
+        private void writeLoop() {
+            DataOutputStream out = this.out;
+            try {
+                Frame frame;
+                while ((frame = outbound.take()) != null) {
+                    frame.writeTo(out);
+                    framesOut.increment();
+                    bytesOut.add(frame.length());
+                    if (outbound.isEmpty()) out.flush();
                 }
-
             }
             catch (IOException e) {
                 debug.println(3, "Error transmitting message");
             }
-
+            catch (InterruptedException e) {
+            }
+        }
+        //the connection is gone, so are its player (from the game), its metrics, and its place among the connections pushed to
+        void leave() {
+            connection.remove(this);
+            //its player goes at the start of the next tick too (after its join, if that is still waiting)
+            gameEngine.requestLeave(() -> {
+                int id=playerID;
+                playerID=-1;
+                return id;
+            });
+            metrics.remove("connection."+number+".");
+        }
+        public int getQueueDepth() { return outbound.depth(); }
+        public long getSentFrames() { return outbound.sent(); }
+        public long getDroppedFrames() { return outbound.dropped(); }
+    }
+    /**
+     * A connection served by the NIO server.  Nothing blocks: the I/O thread calls handleRead
+     * when bytes arrive (frames are put back together in the read buffer) and handleWrite when
+     * the channel can take more of the queued frames (so the I/O thread is this connection's writer).
+     */
+    class ChannelConnection extends Connection{
+        SocketChannel channel;
+        NioServer.IoLoop loop; //the I/O thread serving this connection
+        SelectionKey key;
+        ByteBuffer readBuffer; //bytes read but not yet making up a whole frame
+        ByteBuffer writeBuffer; //frame partly written (null if none)
+        AtomicBoolean writing; //true while the I/O thread is watching for the channel to be writable
+        public ChannelConnection(SocketChannel channel, String name, NioServer.IoLoop loop){
+            super(null, name);
+            this.channel = channel;
+            this.loop = loop;
+            this.readBuffer = ByteBuffer.allocate(4096);
+            this.writing = new AtomicBoolean(false);
+        }
+        public void run(){
+            //nothing to do, the I/O thread drives this connection
+        }
+        //read what is available and process every complete frame (called on the I/O thread)
+        void handleRead(){
+            try {
+                int n = channel.read(readBuffer);
+                if(n < 0){
+                    printMessage(1,"Line terminated finished");
+                    close();
+                    return;
+                }
+                readBuffer.flip();
+                while(readBuffer.remaining() >= 4){
+                    int length = readBuffer.getInt(readBuffer.position());
+                    if(length <= 0 || length > MessageCodec.MAX_FRAME_LENGTH){
+                        throw new IOException("Invalid frame length: " + length);
+                    }
+                    if(readBuffer.remaining() < 4 + length) break; //rest of the frame not here yet
+                    readBuffer.position(readBuffer.position() + 4);
+                    ByteBuffer frame = readBuffer.slice();
+                    frame.limit(length);
+                    readBuffer.position(readBuffer.position() + length);
+                    processMessage(MessageCodec.decodeFrame(frame));
+                }
+                readBuffer.compact();
+                if(readBuffer.position() >= 4){
+                    //make sure the buffer can hold the whole frame being read
+                    int length = readBuffer.getInt(0);
+                    if(length + 4 > readBuffer.capacity()){
+                        ByteBuffer bigger = ByteBuffer.allocate(length + 4);
+                        readBuffer.flip();
+                        bigger.put(readBuffer);
+                        readBuffer = bigger;
+                    }
+                }
+            } catch(IOException e){
+                printMessage(1,"I/O error while communicating with Client"); //lvl 1
+                printMessage(1," Message: " + e.getMessage()); //lvl 1
+                close();
+            }
+        }
+        //write as much of the queued frames as the channel takes (called on the I/O thread)
+        void handleWrite(){
+            try {
+                while(true){
+                    if(writeBuffer == null){
+                        Frame frame = outbound.poll();
+                        if(frame == null) break;
+                        writeBuffer = frame.asByteBuffer();
+                    }
+                    channel.write(writeBuffer);
+                    if(writeBuffer.hasRemaining()) return; //channel is full, wait until it's writable again
+                    framesOut.increment();
+                    bytesOut.add(writeBuffer.limit());
+                    writeBuffer = null;
+                }
+                //all written, stop watching for writable (unless something was queued meanwhile)
+                key.interestOps(SelectionKey.OP_READ);
+                writing.set(false);
+                if(!outbound.isEmpty()) watchWritable();
+            } catch(IOException e){
+                printMessage(3,"Error transmitting message: " + e.getMessage());
+                close();
+            }
+        }
+        //the I/O thread writes the queued frames
+        @Override
+        void frameQueued(){
+            if(!done) watchWritable();
+        }
+        //have the I/O thread watch for the channel to be writable
+        private void watchWritable(){
+            if(writing.compareAndSet(false, true)){
+                loop.execute(() -> {
+                    if(key != null && key.isValid()) key.interestOps(SelectionKey.OP_READ | SelectionKey.OP_WRITE);
+                });
+            }
+        }
+        void close(){
+            printMessage(1,"Client is closing down");
+            done = true;
+            if(key != null) key.cancel();
+            try {
+                channel.close();
+            } catch(IOException e){
+            }
+            outbound.close();
+            leave();
         }
     }
-}
\ No newline at end of file
+}
@@ -3,11 +3,18 @@
  * Author: Christian Duncan
  * Editors: Dylan Irwin, Jack Zemlanicky
  * This application stores the state of the game.
+ * The world is split into square chunks of CHUNK_SIZE, each holding the snacks on it.
+ * In a lazy world (for worlds much bigger than the default) only the chunks near a
+ * player's head are kept: a chunk is filled with snacks when a player comes near it and
+ * dropped again once nobody has been near it for DORMANT_TICKS, so the memory and the
+ * work each tick follow where the players are rather than how big the world is.
+ * Each chunk keeps its snacks in id order, and its own grid of them for collisions, so
+ * neither a snapshot nor a collision check ever has to go through every snack in the world.
  ***********/
+import java.nio.ByteBuffer;
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.Random;
-import java.util.Deque;
-import java.util.ArrayDeque;
 import java.awt.Color;
 import java.io.PrintStream;
 import java.awt.geom.Rectangle2D;
@@ -18,6 +25,17 @@ import java.io.Serializable;
 public class GameState implements Cloneable, Serializable {
     public static final long serialVersionUID=3402L;
     public static final double MIN_SPEED = 10.0;
+    public static final double DEFAULT_SIZE = 500.0;   // Width and height of the world unless asked for otherwise
+    public static final double CHUNK_SIZE = 100.0;     // Width and height of a chunk
+    public static final int ACTIVE_RANGE = 1;          // Chunks kept on each side of the chunk a head is in (lazy worlds)
+    public static final int DORMANT_TICKS = 300;       // Ticks with nobody near before a chunk is dropped (lazy worlds)
+    public static final double BODY_FOOD = 0.5;        // A dead body's snacks are this times the size of its cells
+    public static final int CELL_POOL_SIZE = 4096;     // Most unused cells kept for reuse
+    public static final int POOL_GROWTH = 4;           // Most cells reserveCells makes a tick
+    public static final int CHUNK_POOL_SIZE = 64;      // Most dropped chunks kept for reuse
+    public static final double SNACK_SPAWN_RATE = 1.0/(DEFAULT_SIZE*DEFAULT_SIZE);  // Chance of a snack appearing, per tick per unit of area
+    public static final double SNACK_BUCKET = 4.0;     // Bucket size of each chunk's grid of snacks
+    public static final int CHUNK_GRID_SIZE = 128;     // Entries each chunk's grid of snacks starts with
 
     // Inner class: A simple cell on the board
     class Cell implements Cloneable, Serializable {
@@ -25,6 +43,7 @@ public class GameState implements Cloneable, Serializable {
         double x;  // x position
         double y;  // y position
         double r;  // radius
+        int id;    // Snack id (snacks only), ids only ever increase so new snacks sort last
 
         public Cell(double x, double y, double r) {
             this.x = x;
@@ -56,31 +75,100 @@ public class GameState implements Cloneable, Serializable {
        }
     }
 
-    // Inner class: Just a player, with name and their list of cells
+    // Inner class: A square piece of the world and the snacks on it
+    // New snacks get ever bigger ids and go at the end, and purging keeps the order, so the
+    // snacks are always in id order.
+    class Chunk {
+        int index;              // Position in the chunk table (row by row)
+        double left;            // Corner and size of the chunk (the last row and column may be cut short)
+        double top;
+        double width;
+        double height;
+        final ArrayList<Cell> snacks = new ArrayList<Cell>();
+        int active;             // Position in the list of active chunks
+        int lastSeen;           // Chunk clock when a head was last near (lazy worlds)
+        final SpatialGrid grid = new SpatialGrid(SNACK_BUCKET, CHUNK_GRID_SIZE);  // The snacks (not eaten) by position
+        boolean indexed;        // The grid is up to date with the snacks
+        boolean dirty;          // Some snacks have been eaten (it's in the list of chunks to purge)
+
+        Chunk(int index) {
+            place(index);
+        }
+
+        // Put the chunk at the given position (a dropped chunk is reused somewhere else)
+        void place(int index) {
+            this.index = index;
+            int cx = index % chunksX;
+            int cy = index / chunksX;
+            this.left = cx*CHUNK_SIZE;
+            this.top = cy*CHUNK_SIZE;
+            this.width = Math.min(CHUNK_SIZE, maxX - left);
+            this.height = Math.min(CHUNK_SIZE, maxY - top);
+            this.indexed = false;
+        }
+
+        // The number of snacks the chunk is topped up to
+        double capacity() {
+            return width*height*snackDensity;
+        }
+
+        // Add a snack at a random position in the chunk
+        void addRandomSnack() {
+            double size = rand.nextDouble()*0.9+0.1;
+            addSnack(this, newCell(left + rand.nextDouble()*width, top + rand.nextDouble()*height, size));
+        }
+    }
+
+    // Inner class: Just a player, with name and the cells of its body
+    // The body is a ring buffer of plain arrays (head first), so a long snake is three
+    // arrays instead of an object per cell, and moving it never allocates.
     class Player implements Cloneable, Serializable {
         public static final long serialVersionUID=3402L;
+        private static final int INITIAL_CAPACITY = 16;   // Must be a power of 2
 
         String name;  // Name to display
         Color appearance;  // The appearance of this player
-        Deque<Cell> cell; // The various cells associated with this player
+        double[] x;   // The cells of this player, cell i (0 = head) is at (head + i) & (x.length-1)
+        double[] y;
+        double[] r;
+        int head;     // Array index of the head cell
+        int size;     // Number of cells in the body
         double dx;   // The direction the player is currently moving in
         double dy;
         double growAmount = 2.0;   // Tracks snacks eaten by each player, to grow the player's length
         double distance;  // Distance moved from the head
         double speed;   // Speed at which the snake is moving, in units/second
+        int id;           // The player's id (see addPlayer)
+        int index;        // Where the player is in the list of players
+        int generation;   // Bumped every respawn (the whole body is replaced)
+        long headSeq;     // Number of cells ever pushed at the head (this generation)
+                          // Cells are only pushed at the head and popped at the tail,
+                          // so the body is always cells headSeq-size .. headSeq-1
 
         public Player(String n, double initX,  double initY, double initR, Color appearance) {
             this.name = n;
-            cell = new ArrayDeque<>();
-            cell.add(new Cell(initX, initY, initR));
+            x = new double[INITIAL_CAPACITY];
+            y = new double[INITIAL_CAPACITY];
+            r = new double[INITIAL_CAPACITY];
+            addCell(initX, initY, initR);
             this.appearance = appearance;
             this.speed = MIN_SPEED;
+            this.headSeq = 1;
         }
 
-        public Deque<Cell> getCells() { return cell; }
         public String getName() { return name; }
         public Color getAppearance() { return appearance; }
 
+        /**
+         * @returns The number of cells in this player's body
+         **/
+        public int size() { return size; }
+
+        // Cell i of the body, 0 is the head and size()-1 the tail
+        public double getX(int i) { return x[(head + i) & (x.length - 1)]; }
+        public double getY(int i) { return y[(head + i) & (y.length - 1)]; }
+        public double getR(int i) { return r[(head + i) & (r.length - 1)]; }
+
         /**
          * Set the movement direction for this player
          **/
@@ -97,10 +185,48 @@ public class GameState implements Cloneable, Serializable {
         }
 
         /**
-         * Add a new cell for this player
+         * Add a new cell for this player (at the tail)
          **/
         public void addCell(double x, double y, double r) {
-            cell.add(new Cell(x, y, r));
+            if (size == this.x.length) grow();
+            int t = (head + size) & (this.x.length - 1);
+            this.x[t] = x;
+            this.y[t] = y;
+            this.r[t] = r;
+            size++;
+        }
+
+        // Push a new head cell
+        private void pushHead(double x, double y, double r) {
+            if (size == this.x.length) grow();
+            head = (head - 1) & (this.x.length - 1);
+            this.x[head] = x;
+            this.y[head] = y;
+            this.r[head] = r;
+            size++;
+        }
+
+        // Drop the tail cell
+        private void popTail() {
+            size--;
+        }
+
+        // Double the capacity, unrolling the ring so the head is at index 0 again
+        private void grow() {
+            int capacity = x.length * 2;
+            double[] nx = new double[capacity];
+            double[] ny = new double[capacity];
+            double[] nr = new double[capacity];
+            for (int i = 0; i < size; i++) {
+                int c = (head + i) & (x.length - 1);
+                nx[i] = x[c];
+                ny[i] = y[c];
+                nr[i] = r[c];
+            }
+            x = nx;
+            y = ny;
+            r = nr;
+            head = 0;
         }
 
         /**
@@ -110,48 +236,43 @@ public class GameState implements Cloneable, Serializable {
          **/
          public void move(double delta) {
              distance += speed*delta;   // Calulate how far away it's moved now
-             Cell head = cell.peekFirst();
-             //System.out.println(this.name + ": Distance = " + distance + " x = " + head.x + " y = " + head.y);
+             double headX = x[head];
+             double headY = y[head];
+             double headR = r[head];
+             //System.out.println(this.name + ": Distance = " + distance + " x = " + headX + " y = " + headY);
              if (speed > MIN_SPEED) {
                //Increase speed comes at a cost, decreases the growth value at a rate of 1 cell/second
                double factor = speed/MIN_SPEED - 1.0;
                growAmount -= factor*delta;
              }
-             if (distance > head.r) {
-                 distance -= head.r;
+             if (distance > headR) {
+                 distance -= headR;
                  double mag = Math.sqrt(dx*dx + dy*dy);
                  //if player is just joining
                  if(mag==0){
                     return;
                  }
-                 double newX = head.x + head.r * dx / mag;
-                 double newY = head.y + head.r * dy / mag;
+                 double newX = headX + headR * dx / mag;
+                 double newY = headY + headR * dy / mag;
                  if(newX<0) newX = 0;
                  else if(newX>maxX) newX = maxX;
                  if(newY<0) newY = 0;
                  else if(newY>maxY) newY = maxY;
                  if (growAmount >= 1) {
                    // Grow a new head
-                   this.addCell(newX, newY, head.r);
                    growAmount--;
                  } else if (growAmount <= -1) {
                    // Remove a cell
-                   if (this.cell.size() > 1) {
-                     this.cell.removeLast();
+                   if (size > 1) {
+                     popTail();
                    }
                    growAmount++;
-                   Cell end = this.cell.removeLast();
-                   end.x = newX;
-                   end.y = newY;
-                   end.r = head.r;
-                   this.cell.addFirst(end);
+                   popTail();
                  } else {
-                   Cell end = this.cell.removeLast();
-                   end.x = newX;
-                   end.y = newY;
-                   end.r = head.r;
-                   this.cell.addFirst(end);
+                   popTail();
                  }
+                 pushHead(newX, newY, headR);
+                 headSeq++;
              }
          }
 
@@ -163,7 +284,23 @@ public class GameState implements Cloneable, Serializable {
          * Just for coding simplicity... this check is INEFFICIENT brute force!
          **/
         public void collisions(Player other) {
-            collisions(other.cell, false);
+            double hx = x[head];
+            double hy = y[head];
+            double hr = r[head];
+            int mask = other.x.length - 1;
+            for (int i = 0; i < other.size; i++) {
+                if (other == this && i == 0) continue;  // Same cell - ignore
+                int c = (other.head + i) & mask;
+                double or = other.r[c];
+                if (or == 0) continue;
+                double ddx = hx - other.x[c];
+                double ddy = hy - other.y[c];
+                double distCollision = hr + or;
+                if (ddx*ddx + ddy*ddy < distCollision*distCollision) {
+                    respawn();
+                    return;
+                }
+            }
         }
 
         /**
@@ -174,26 +311,53 @@ public class GameState implements Cloneable, Serializable {
          * Just for coding simplicity... this check is INEFFICIENT brute force!
          **/
          public void collisions(Iterable<Cell> cell, boolean isSnack) {
-             Cell head = this.cell.peekFirst();
+             double hx = x[head];
+             double hy = y[head];
+             double hr = r[head];
+             if (hr == 0) return;
              for (Cell otherC: cell) {
-                 if (otherC.r > 0 && head.computeCollision(otherC)) {
+                 double ddx = hx - otherC.x;
+                 double ddy = hy - otherC.y;
+                 double distCollision = hr + otherC.r;
+                 if (otherC.r > 0 && ddx*ddx + ddy*ddy < distCollision*distCollision) {
                    if(isSnack) {
-                     this.growAmount+= otherC.r;   // Add cell to the player
-                     otherC.r = 0;   // Get rid of snack
-                     //System.out.println(this.name + ": yum yum " + this.growAmount);
+                     eat(otherC);
                    }
                    else{
-                       //player whose head collides with other's body shrinks by x factor and respawns
-                       Point2D.Double p = randomPosition();
-                       //TODO: iterate thru old deque to turn them into food
-                       this.cell = new ArrayDeque<>();
-                       this.cell.add(new Cell(p.x, p.y, minR));
+                     respawn();
                    }
                    return;
                  }
              }
          }
 
+        /**
+         * Eat the given snack
+         * @param snack The snack cell, its radius is added to the player's growth
+         **/
+         public void eat(Cell snack) {
+             this.growAmount+= snack.r;   // Add cell to the player
+             snack.r = 0;   // Get rid of snack
+             snackEaten(snack);
+             //System.out.println(this.name + ": yum yum " + this.growAmount);
+         }
+
+        /**
+         * Respawn this player at a random position, called when its head hits another player
+         * The old body is left behind as food.
+         **/
+         public void respawn() {
+             //player whose head collides with other's body shrinks by x factor and respawns
+             addSnacks(this);
+             double px = rand.nextDouble()*maxX;   // Same as randomPosition, without making a Point
+             double py = rand.nextDouble()*maxY;
+             head = 0;
+             size = 0;
+             addCell(px, py, minR);
+             generation++;
+             headSeq = 1;
+         }
+
         /**
          * Generate a string representation of the given player
          * For DEBUGGING purposes mainly
@@ -203,23 +367,49 @@ public class GameState implements Cloneable, Serializable {
             StringBuilder res = new StringBuilder();
             res.append(name);
             res.append(" cells: ");
-            for (Cell c: cell) {
+            for (int i = 0; i < size; i++) {
                 res.append("(");
-                res.append(c.x);
+                res.append(getX(i));
                 res.append(",");
-                res.append(c.y);
+                res.append(getY(i));
                 res.append(",");
-                res.append(c.r);
+                res.append(getR(i));
                 res.append(") ");
             }
             return res.toString();
         }
     }
 
-    // The list of Players
+    // The list of Players, packed with no gaps but in no particular order
     private ArrayList<Player> player;
-    // The list of snacks to eat
-    ArrayList<Cell> snacks;
+    // The players by id (null where there is none), and the ids free to be given out again
+    private Player[] byID;
+    private int[] freeID;
+    private int freeCount;
+    private int nextID;          // Ids below this have been given out
+    private int[] idGeneration;  // First generation of the next player to get each id
+    // The chunks of the world (null for a chunk that isn't kept), and the ones being played in
+    private Chunk[] chunk;
+    int chunksX;
+    int chunksY;
+    private Chunk[] activeChunk;
+    private int activeCount;
+    private boolean lazyChunks;   // Only keep the chunks near players
+    private int chunkClock;       // Counts calls to updateChunks
+    private int snackCount;       // Snacks in all the chunks
+    // The snacks of the active chunks, collected again by every getSnacks
+    private ArrayList<Cell> snacks;
+    // The chunks with snacks eaten since the last purge
+    private Chunk[] dirtyChunk = new Chunk[16];
+    private int dirtyCount;
+    private double maxSnackR;     // Biggest snack there has been (how far past its chunk a snack can reach)
+    double snackDensity;          // Snacks each chunk is topped up to, per unit of area
+    // Cells no longer in use, handed out again by newCell (so eating and spawning don't make garbage)
+    private Cell[] freeCell = new Cell[CELL_POOL_SIZE];
+    private int freeCellCount;
+    // Dropped chunks, kept for reuse along with their lists (lazy worlds)
+    private Chunk[] freeChunk = new Chunk[CHUNK_POOL_SIZE];
+    private int freeChunkCount;
     Color snackColor = new Color(0xF5F5DC);
 
     double maxX;   // The range of the game state (loops around if it gets too close)
@@ -227,15 +417,38 @@ public class GameState implements Cloneable, Serializable {
     double minR;   // The smallest that any cell can get (except for "food" particles)
     int maxCells;  // The maximum number of cells allowed for any player
     Random rand;   // Random number generator
+    int nextSnackID;   // Id given to the next snack created
 
     public GameState() {
+        this(DEFAULT_SIZE, DEFAULT_SIZE, false);
+    }
+
+    /**
+     * @param maxX The width of the world
+     * @param maxY The height of the world
+     * @param lazyChunks true to only keep the chunks near players (for a big world),
+     *                   false to keep (and spawn snacks in) every chunk all the time
+     **/
+    public GameState(double maxX, double maxY, boolean lazyChunks) {
         player = new ArrayList<Player>(2);  // Initial size
-        maxX = 500.0;
-        maxY = 500.0;
+        byID = new Player[2];
+        freeID = new int[2];
+        idGeneration = new int[2];
+        this.maxX = maxX;
+        this.maxY = maxY;
         minR = 1.0;
         maxCells = 10;
         snacks = new ArrayList<Cell>();
+        snackDensity = 0.01;
         rand = new Random();
+        this.lazyChunks = lazyChunks;
+        chunksX = Math.max(1, (int) Math.ceil(maxX/CHUNK_SIZE));
+        chunksY = Math.max(1, (int) Math.ceil(maxY/CHUNK_SIZE));
+        chunk = new Chunk[chunksX*chunksY];
+        activeChunk = new Chunk[lazyChunks ? 16 : chunk.length];
+        if (!lazyChunks) {
+            for (int i = 0; i < chunk.length; i++) activate(new Chunk(i));
+        }
     }
 
     /**
@@ -254,71 +467,408 @@ public class GameState implements Cloneable, Serializable {
 
     /**
      * Add a player to the Game State.  All future references to this
-     * player should use the index returned.
+     * player should use the id returned.
      * @param name The name of the player
      * @param color The color of the player
-     * @returns The index of this player (in the ArrayList)
+     * @returns The id of this player
      **/
     public synchronized int addPlayer(String name, Color color) {
         // Pick an initial random location for the cell
         Point2D.Double p = randomPosition();
-        player.add(new Player(name, p.x, p.y, minR, color));
-        return player.size()-1;
+        return addPlayer(new Player(name, p.x, p.y, minR, color));
+    }
+
+    /**
+     * Add a player that has already been made, giving it an id.
+     * The id of a removed player is given out again, but the new player starts on a later
+     * generation than the old one reached, so a client can't mistake one body for the other.
+     * @returns The id of the player
+     **/
+    synchronized int addPlayer(Player p) {
+        int id;
+        if (freeCount > 0) {
+            id = freeID[--freeCount];
+        } else {
+            id = nextID++;
+            if (id == byID.length) {
+                byID = Arrays.copyOf(byID, id*2);
+                idGeneration = Arrays.copyOf(idGeneration, id*2);
+            }
+        }
+        p.id = id;
+        p.generation = idGeneration[id];
+        p.index = player.size();
+        player.add(p);
+        byID[id] = p;
+        return id;
+    }
+
+    /**
+     * Remove a player from the game.  Takes the same time however many players there are:
+     * the last player in the list is moved into the removed one's place.
+     * @param id The id of the player
+     * @returns false if there is no such player
+     **/
+    public synchronized boolean removePlayer(int id) {
+        Player p = getPlayer(id);
+        if (p == null) return false;
+        Player last = player.remove(player.size()-1);
+        if (last != p) {
+            player.set(p.index, last);
+            last.index = p.index;
+        }
+        byID[id] = null;
+        idGeneration[id] = p.generation + 1;
+        if (freeCount == freeID.length) freeID = Arrays.copyOf(freeID, freeCount*2);
+        freeID[freeCount++] = id;
+        return true;
+    }
+
+    /**
+     * @param id The id of the player
+     * @returns The player, or null if there is none with that id
+     **/
+    public Player getPlayer(int id) {
+        return id >= 0 && id < nextID ? byID[id] : null;
+    }
+
+    /**
+     * @returns One more than the largest id any player has now or had (the ids to look through
+     *          with getPlayer to see every player in id order)
+     **/
+    public int getPlayerIDLimit() {
+        return nextID;
     }
 
     /**
      * Set a player p's direction to dx and dy.
      * This moves all cells in that direction
-     * @param p The player (index) to move
+     * @param p The player (id) to move
      * @param dx The amount to move in the x direction
      * @param dy The amount to move in the y direction
      **/
     public synchronized void setPlayerDirection(int p, double dx, double dy) {
-        Player pl = player.get(p);  // Get the Player object
-        pl.setDirection(dx, dy);
+        Player pl = getPlayer(p);  // Get the Player object
+        if (pl != null) pl.setDirection(dx, dy);
     }
 
     /**
      * Set a player p's speed
-     * @param p The player (index) to move
+     * @param p The player (id) to move
      * @param s Spped of player
      **/
     public synchronized void setPlayerSpeed(int p, double s) {
-        Player pl = player.get(p);  // Get the Player object
-        pl.setSpeed(s);
+        Player pl = getPlayer(p);  // Get the Player object
+        if (pl != null) pl.setSpeed(s);
     }
 
-    // Returns the list of players.  Probably safer to have some way to iterate through them and the cells
+    // Returns the list of players (in no particular order, use getPlayer to go by id).  Probably safer to have some way to iterate through them and the cells
     // So we can control access.  But this will be a network so this actually will be a local copy of the GameState anyway!
     public ArrayList<Player> getPlayers() {
         return player;
     }
 
-    public ArrayList<Cell> getSnacks() {
+    /**
+     * Get the snacks of the active chunks, chunk by chunk (so not in id order, see getChunkSnacks).
+     * The list is reused: it is only good until the next call, with the lock held meanwhile.
+     **/
+    public synchronized ArrayList<Cell> getSnacks() {
+        snacks.clear();
+        for (int i = 0; i < activeCount; i++) {
+            ArrayList<Cell> s = activeChunk[i].snacks;
+            for (int j = 0; j < s.size(); j++) snacks.add(s.get(j));   // (addAll would copy each list first)
+        }
         return snacks;
     }
 
+    /**
+     * @param i The active chunk (0 to getActiveChunkCount()-1)
+     * @returns The snacks of that chunk, in id order
+     **/
+    ArrayList<Cell> getChunkSnacks(int i) {
+        return activeChunk[i].snacks;
+    }
+
+    /**
+     * @returns The number of snacks in the world (in the active chunks)
+     **/
+    public int getSnackCount() { return snackCount; }
+
+    /**
+     * @returns The number of chunks being played in
+     **/
+    public int getActiveChunkCount() { return activeCount; }
+
     /**
      * Add a piece of random snack on the board - anywhere
      **/
     public synchronized void addRandomSnack() {
-        Point2D.Double p = randomPosition();
+        double x = rand.nextDouble()*maxX;
+        double y = rand.nextDouble()*maxY;
         double size = rand.nextDouble()*0.9+0.1;
-        Cell snac = new Cell(p.x, p.y, size);
-        snacks.add(snac);
+        addSnack(newCell(x, y, size));
+    }
+
+    /**
+     * Add a snack to the chunk it is on, giving it the next snack id
+     **/
+    synchronized void addSnack(Cell snac) {
+        addSnack(chunkAt(snac.x, snac.y), snac);
+    }
+
+    private void addSnack(Chunk c, Cell snac) {
+        snac.id = nextSnackID++;
+        c.snacks.add(snac);
+        c.indexed = false;
+        if (snac.r > maxSnackR) maxSnackR = snac.r;
+        snackCount++;
+    }
+
+    /**
+     * Turn a player's body into snacks, one where each cell is (a dead snake's body becomes food).
+     * All the cells go straight into their chunks in one go: the cells come from the pool and
+     * neighbouring cells are nearly always in the same chunk, so it's looked up only when it changes.
+     * The new snacks get consecutive ids, so they are just added at the end of the next delta.
+     * @param p The player (its body isn't changed)
+     **/
+    synchronized void addSnacks(Player p) {
+        Chunk c = null;
+        int mask = p.x.length - 1;
+        for (int i = 0; i < p.size; i++) {
+            int at = (p.head + i) & mask;
+            double x = p.x[at];
+            double y = p.y[at];
+            int index = chunkRow(y)*chunksX + chunkColumn(x);
+            if (c == null || c.index != index) c = chunkAt(x, y);
+            addSnack(c, newCell(x, y, p.r[at]*BODY_FOOD));
+        }
+    }
+
+    /**
+     * Maybe add a snack to each active chunk that isn't full (so on average SNACK_SPAWN_RATE
+     * snacks per unit of area every call)
+     **/
+    public synchronized void spawnSnacks() {
+        for (int i = 0; i < activeCount; i++) {
+            Chunk c = activeChunk[i];
+            if (c.snacks.size() < c.capacity() && rand.nextDouble() < c.width*c.height*SNACK_SPAWN_RATE) {
+                c.addRandomSnack();
+            }
+        }
     }
 
     /**
      * Purge cells in snack list that have radius 0 -- "dead cells"
+     * Only the chunks something was eaten in are looked at.  The snacks left are moved
+     * down in one go (keeping them in id order), and the dead ones go back to the pool
+     * of cells for the next snack.
      **/
     public synchronized void purgeSnacks() {
-        // The simplest way is just to create a new arraylist of only those cells to keep.
-        // Can be done more efficiently by keeping the old array list but minor time constraint here.
-        ArrayList<Cell> newSnacks = new ArrayList<Cell>();
-        for (Cell s: snacks) {
-            if (s.r > 0) newSnacks.add(s);
+        for (int i = 0; i < dirtyCount; i++) {
+            Chunk c = dirtyChunk[i];
+            dirtyChunk[i] = null;
+            c.dirty = false;
+            c.indexed = false;
+            ArrayList<Cell> s = c.snacks;
+            int kept = 0;
+            for (int j = 0; j < s.size(); j++) {
+                Cell cell = s.get(j);
+                if (cell.r > 0) {
+                    s.set(kept++, cell);
+                } else {
+                    freeCell(cell);
+                    snackCount--;
+                }
+            }
+            while (s.size() > kept) s.remove(s.size() - 1);
+        }
+        dirtyCount = 0;
+    }
+
+    // Note a snack was eaten: its chunk's grid is out of date, and the chunk needs purging
+    private void snackEaten(Cell snack) {
+        Chunk c = chunk[chunkRow(snack.y)*chunksX + chunkColumn(snack.x)];
+        if (c == null) return;   // Not one of the world's snacks
+        c.indexed = false;
+        if (c.dirty) return;
+        c.dirty = true;
+        if (dirtyCount == dirtyChunk.length) dirtyChunk = Arrays.copyOf(dirtyChunk, dirtyCount*2);
+        dirtyChunk[dirtyCount++] = c;
+    }
+
+    /**
+     * Get the grids of the chunks near every player's head up to date, so findSnack only
+     * has to read them (several threads can then look up at once).  Called once a tick.
+     **/
+    public synchronized void indexSnacks() {
+        for (int i = 0; i < player.size(); i++) {
+            Player p = player.get(i);
+            if (p.size() == 0) continue;
+            double x = p.getX(0);
+            double y = p.getY(0);
+            double reach = p.getR(0) + maxSnackR;
+            for (int cy = chunkRow(y - reach); cy <= chunkRow(y + reach); cy++) {
+                for (int cx = chunkColumn(x - reach); cx <= chunkColumn(x + reach); cx++) {
+                    Chunk c = chunk[cy*chunksX + cx];
+                    if (c != null && !c.indexed) index(c);
+                }
+            }
+        }
+    }
+
+    /**
+     * Find a snack (not eaten) that a cell runs into.  Only the chunks the cell could reach are
+     * looked in, each through its own grid, and the first one hit (chunk by chunk, row by row)
+     * is the one found, so it doesn't depend on when the grids were made.
+     * Only reads the grids if they are up to date (see indexSnacks), otherwise brings them up to
+     * date, which only one thread may do.
+     * @returns The snack, or null if the cell doesn't touch any
+     **/
+    Cell findSnack(double x, double y, double r) {
+        if (r == 0) return null;   // Cell is non-existent
+        double reach = r + maxSnackR;
+        for (int cy = chunkRow(y - reach); cy <= chunkRow(y + reach); cy++) {
+            for (int cx = chunkColumn(x - reach); cx <= chunkColumn(x + reach); cx++) {
+                Chunk c = chunk[cy*chunksX + cx];
+                if (c == null || c.snacks.isEmpty()) continue;
+                if (!c.indexed) index(c);
+                int e = c.grid.findFirst(x, y, r, SpatialGrid.NO_OWNER);
+                if (e >= 0) return c.snacks.get(c.grid.getIndex(e));
+            }
+        }
+        return null;
+    }
+
+    // Fill a chunk's grid with its snacks (leaving out the eaten ones)
+    private void index(Chunk c) {
+        c.grid.clear();
+        for (int j = 0; j < c.snacks.size(); j++) {
+            Cell s = c.snacks.get(j);
+            if (s.r > 0) c.grid.insert(s.x, s.y, s.r, SpatialGrid.NO_OWNER, j);
+        }
+        c.indexed = true;
+    }
+
+    /**
+     * Get a cell, from the pool of unused cells if there is one
+     **/
+    Cell newCell(double x, double y, double r) {
+        if (freeCellCount == 0) return new Cell(x, y, r);
+        Cell c = freeCell[--freeCellCount];
+        freeCell[freeCellCount] = null;
+        c.x = x;
+        c.y = y;
+        c.r = r;
+        c.id = 0;
+        return c;
+    }
+
+    /**
+     * Grow the pool of cells a little toward the size of the biggest body (called once a tick),
+     * so when a big snake dies its food comes out of the pool instead of being made all at once.
+     * Bodies grow a cell at a time, so a few cells a tick keeps up.
+     **/
+    public synchronized void reserveCells() {
+        int biggest = 0;
+        for (int i = 0; i < player.size(); i++) biggest = Math.max(biggest, player.get(i).size);
+        int wanted = Math.min(biggest, freeCell.length);
+        for (int n = 0; n < POOL_GROWTH && freeCellCount < wanted; n++) {
+            freeCell[freeCellCount++] = new Cell(0, 0, 0);
         }
-        snacks = newSnacks;
+    }
+
+    // Put a cell nobody refers to any more back in the pool (unless the pool is full)
+    private void freeCell(Cell c) {
+        if (freeCellCount < freeCell.length) freeCell[freeCellCount++] = c;
+    }
+
+    /**
+     * Bring the active chunks up to date with where the players are (called once a tick).
+     * In a lazy world a chunk near a head that isn't kept is made and filled with snacks,
+     * and a chunk nobody has come near for DORMANT_TICKS is dropped along with its snacks.
+     * Otherwise every chunk is always active and nothing changes.
+     **/
+    public synchronized void updateChunks() {
+        if (!lazyChunks) return;
+        chunkClock++;
+        for (int i = 0; i < player.size(); i++) {
+            Player p = player.get(i);
+            if (p.size() == 0) continue;
+            int cx = chunkColumn(p.getX(0));
+            int cy = chunkRow(p.getY(0));
+            for (int y = Math.max(0, cy - ACTIVE_RANGE); y <= Math.min(chunksY - 1, cy + ACTIVE_RANGE); y++) {
+                for (int x = Math.max(0, cx - ACTIVE_RANGE); x <= Math.min(chunksX - 1, cx + ACTIVE_RANGE); x++) {
+                    Chunk c = chunk[y*chunksX + x];
+                    if (c == null) {
+                        c = activate(newChunk(y*chunksX + x));
+                        while (c.snacks.size() < c.capacity()) c.addRandomSnack();
+                    }
+                    c.lastSeen = chunkClock;
+                }
+            }
+        }
+        for (int i = activeCount - 1; i >= 0; i--) {
+            Chunk c = activeChunk[i];
+            if (chunkClock - c.lastSeen > DORMANT_TICKS) deactivate(c);
+        }
+    }
+
+    // The chunk a position is in (made and activated if it isn't kept)
+    private Chunk chunkAt(double x, double y) {
+        int i = chunkRow(y)*chunksX + chunkColumn(x);
+        Chunk c = chunk[i];
+        if (c == null) {
+            c = activate(newChunk(i));
+            c.lastSeen = chunkClock;
+        }
+        return c;
+    }
+
+    private int chunkColumn(double x) {
+        return Math.max(0, Math.min(chunksX - 1, (int) (x/CHUNK_SIZE)));
+    }
+
+    private int chunkRow(double y) {
+        return Math.max(0, Math.min(chunksY - 1, (int) (y/CHUNK_SIZE)));
+    }
+
+    // Get a chunk for the given position, a dropped one if there is one
+    private Chunk newChunk(int index) {
+        if (freeChunkCount == 0) return new Chunk(index);
+        Chunk c = freeChunk[--freeChunkCount];
+        freeChunk[freeChunkCount] = null;
+        c.place(index);
+        return c;
+    }
+
+    // Keep a chunk and put it in the active list
+    private Chunk activate(Chunk c) {
+        chunk[c.index] = c;
+        if (activeCount == activeChunk.length) activeChunk = Arrays.copyOf(activeChunk, activeCount*2);
+        c.active = activeCount;
+        activeChunk[activeCount++] = c;
+        return c;
+    }
+
+    // Drop a chunk and its snacks (the last active chunk takes its place in the list)
+    private void deactivate(Chunk c) {
+        if (c.dirty) {
+            // Nothing left to purge once it's gone
+            int i = 0;
+            while (dirtyChunk[i] != c) i++;
+            dirtyChunk[i] = dirtyChunk[--dirtyCount];
+            dirtyChunk[dirtyCount] = null;
+            c.dirty = false;
+        }
+        Chunk last = activeChunk[--activeCount];
+        activeChunk[c.active] = last;
+        last.active = c.active;
+        activeChunk[activeCount] = null;
+        chunk[c.index] = null;
+        snackCount -= c.snacks.size();
+        for (int i = 0; i < c.snacks.size(); i++) freeCell(c.snacks.get(i));
+        c.snacks.clear();
+        if (freeChunkCount < freeChunk.length) freeChunk[freeChunkCount++] = c;
     }
 
     /**
@@ -336,20 +886,158 @@ public class GameState implements Cloneable, Serializable {
         double cellMaxX = 0;
         double cellMinY = maxY;
         double cellMaxY = 0;
-        Player pl = player.get(p);
+        Player pl = getPlayer(p);
         //System.err.println("gBB: playerID = " +p+ "number of players is "+player.size());
-        if (pl.cell.size() == 0) return new Rectangle2D.Double(0, 0, maxX, maxY);  // Full screen
+        if (pl == null || pl.size() == 0) return new Rectangle2D.Double(0, 0, maxX, maxY);  // Full screen
 
-        for (Cell c: pl.cell) {
-            if (c.x-c.r < cellMinX) cellMinX = c.x - c.r;
-            if (c.x+c.r > cellMaxX) cellMaxX = c.x + c.r;
-            if (c.y-c.r < cellMinY) cellMinY = c.y - c.r;
-            if (c.y+c.r > cellMaxY) cellMaxY = c.y + c.r;
+        for (int i = 0; i < pl.size(); i++) {
+            double x = pl.getX(i), y = pl.getY(i), r = pl.getR(i);
+            if (x-r < cellMinX) cellMinX = x - r;
+            if (x+r > cellMaxX) cellMaxX = x + r;
+            if (y-r < cellMinY) cellMinY = y - r;
+            if (y+r > cellMaxY) cellMaxY = y + r;
         }
 
         return new Rectangle2D.Double(cellMinX, cellMinY, cellMaxX - cellMinX, cellMaxY - cellMinY);
     }
 
+    /**
+     * @returns The number of bytes writeKeyframe will write
+     **/
+    public synchronized int keyframeSize() {
+        int size = 4*8 + 4 + 4 + 1 + 3*4 + 4*nextID + 4 + 4*freeCount + 4;
+        for (int i = 0; i < player.size(); i++) {
+            Player p = player.get(i);
+            size += 4 + 4 + 8 + 4 + 2*p.name.length() + 5 + 5*8 + 4 + 3*8*p.size;
+        }
+        size += 4;
+        for (int i = 0; i < activeCount; i++) size += 3*4 + (4 + 3*8)*activeChunk[i].snacks.size();
+        return size;
+    }
+
+    /**
+     * Write everything about the game (at full precision, unlike the network form) that
+     * playing on from here depends on, so readKeyframe gives a game that plays on exactly the same.
+     * The players and the snacks are written in the order they are kept in, as collisions
+     * are checked in that order.  The random number generator can't be saved, so whoever
+     * writes a keyframe seeds it anew and saves the seed alongside.
+     * @param out Where to write it (with at least keyframeSize bytes left)
+     **/
+    public synchronized void writeKeyframe(ByteBuffer out) {
+        out.putDouble(maxX).putDouble(maxY).putDouble(minR).putDouble(snackDensity);
+        out.putInt(maxCells).putInt(snackColor.getRGB());
+        out.put((byte) (lazyChunks ? 1 : 0));
+        out.putInt(chunkClock).putInt(nextSnackID);
+        out.putInt(nextID);
+        for (int id = 0; id < nextID; id++) out.putInt(idGeneration[id]);
+        out.putInt(freeCount);
+        for (int i = 0; i < freeCount; i++) out.putInt(freeID[i]);
+
+        out.putInt(player.size());
+        for (int i = 0; i < player.size(); i++) {
+            Player p = player.get(i);
+            out.putInt(p.id).putInt(p.generation).putLong(p.headSeq);
+            out.putInt(p.name.length());
+            for (int c = 0; c < p.name.length(); c++) out.putChar(p.name.charAt(c));
+            out.put((byte) (p.appearance != null ? 1 : 0));
+            out.putInt(p.appearance != null ? p.appearance.getRGB() : 0);
+            out.putDouble(p.dx).putDouble(p.dy).putDouble(p.growAmount).putDouble(p.distance).putDouble(p.speed);
+            out.putInt(p.size);
+            for (int c = 0; c < p.size; c++) out.putDouble(p.getX(c)).putDouble(p.getY(c)).putDouble(p.getR(c));
+        }
+
+        out.putInt(activeCount);
+        for (int i = 0; i < activeCount; i++) {
+            Chunk c = activeChunk[i];
+            out.putInt(c.index).putInt(c.lastSeen).putInt(c.snacks.size());
+            for (int j = 0; j < c.snacks.size(); j++) {
+                Cell s = c.snacks.get(j);
+                out.putInt(s.id).putDouble(s.x).putDouble(s.y).putDouble(s.r);
+            }
+        }
+    }
+
+    /**
+     * Read a game written by writeKeyframe
+     * @param in Where to read it from
+     * @param seed The seed to give the random number generator
+     **/
+    public static GameState readKeyframe(ByteBuffer in, long seed) {
+        double maxX = in.getDouble();
+        double maxY = in.getDouble();
+        double minR = in.getDouble();
+        double snackDensity = in.getDouble();
+        int maxCells = in.getInt();
+        Color snackColor = new Color(in.getInt());
+        boolean lazy = in.get() != 0;
+        GameState s = new GameState(maxX, maxY, lazy);
+        s.minR = minR;
+        s.snackDensity = snackDensity;
+        s.maxCells = maxCells;
+        s.snackColor = snackColor;
+        s.rand = new Random(seed);
+        s.chunkClock = in.getInt();
+        s.nextSnackID = in.getInt();
+        s.nextID = in.getInt();
+        s.byID = new Player[Math.max(2, s.nextID)];
+        s.idGeneration = new int[s.byID.length];
+        for (int id = 0; id < s.nextID; id++) s.idGeneration[id] = in.getInt();
+        s.freeCount = in.getInt();
+        s.freeID = new int[Math.max(2, s.freeCount)];
+        for (int i = 0; i < s.freeCount; i++) s.freeID[i] = in.getInt();
+
+        int players = in.getInt();
+        for (int i = 0; i < players; i++) {
+            int id = in.getInt();
+            int generation = in.getInt();
+            long headSeq = in.getLong();
+            char[] name = new char[in.getInt()];
+            for (int c = 0; c < name.length; c++) name[c] = in.getChar();
+            boolean hasColor = in.get() != 0;
+            int rgb = in.getInt();
+            double dx = in.getDouble();
+            double dy = in.getDouble();
+            double growAmount = in.getDouble();
+            double distance = in.getDouble();
+            double speed = in.getDouble();
+            int size = in.getInt();
+            Player p = s.new Player(new String(name), in.getDouble(), in.getDouble(), in.getDouble(),
+                                    hasColor ? new Color(rgb, true) : null);
+            for (int c = 1; c < size; c++) p.addCell(in.getDouble(), in.getDouble(), in.getDouble());
+            p.id = id;
+            p.generation = generation;
+            p.headSeq = headSeq;
+            p.dx = dx;
+            p.dy = dy;
+            p.growAmount = growAmount;
+            p.distance = distance;
+            p.speed = speed;
+            p.index = s.player.size();
+            s.player.add(p);
+            s.byID[id] = p;
+        }
+
+        int chunks = in.getInt();
+        for (int i = 0; i < chunks; i++) {
+            int index = in.getInt();
+            // A lazy world starts with no chunks, the others start with them all (in this order)
+            Chunk c = lazy ? s.activate(s.newChunk(index)) : s.chunk[index];
+            c.lastSeen = in.getInt();
+            int snacks = in.getInt();
+            for (int j = 0; j < snacks; j++) {
+                Cell snack = s.newCell(0, 0, 0);
+                snack.id = in.getInt();
+                snack.x = in.getDouble();
+                snack.y = in.getDouble();
+                snack.r = in.getDouble();
+                if (snack.r > s.maxSnackR) s.maxSnackR = snack.r;
+                c.snacks.add(snack);
+                s.snackCount++;
+            }
+        }
+        return s;
+    }
+
     /**
      * Display the "Game State"
      **/
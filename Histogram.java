@@ -0,0 +1,94 @@
+/***************
+ * Histogram
+ * Spring 21: CSC340
+ * Counts how often values (times in nanoseconds, sizes, ...) fall in each of a fixed set of buckets,
+ * so percentiles can be read off later.  Buckets are 4 to every power of two, so a percentile is
+ * within about 25% of the real value.  Recording never locks or allocates, so it can be done
+ * from the engine and the I/O threads on every tick.
+ ***************/
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+public class Histogram {
+    private static final int SUB_BITS = 2;                // 2^SUB_BITS buckets for every power of two
+    private static final int SUB = 1 << SUB_BITS;
+    private static final int BUCKETS = SUB + (63 - SUB_BITS) * SUB;
+
+    private final AtomicLongArray bucket = new AtomicLongArray(BUCKETS);
+    private final AtomicLong count = new AtomicLong();
+    private final AtomicLong sum = new AtomicLong();
+    private final AtomicLong max = new AtomicLong();
+
+    /**
+     * Record a value (negative values count as 0)
+     **/
+    public void record(long value) {
+        if (value < 0) value = 0;
+        bucket.incrementAndGet(bucketOf(value));
+        count.incrementAndGet();
+        sum.addAndGet(value);
+        long m;
+        while (value > (m = max.get()) && !max.compareAndSet(m, value)) { }
+    }
+
+    /**
+     * Record the time since start
+     * @param start When the timed work started (System.nanoTime)
+     * @returns The current time, so the next phase can be timed from it
+     **/
+    public long recordSince(long start) {
+        long now = System.nanoTime();
+        record(now - start);
+        return now;
+    }
+
+    public long getCount() { return count.get(); }
+    public long getMax() { return max.get(); }
+    public double getMean() {
+        long n = count.get();
+        return n == 0 ? 0 : (double) sum.get() / n;
+    }
+
+    /**
+     * @param q The fraction of values wanted below the result (e.g. 0.99)
+     * @returns The value below which that fraction of the recorded values are (the top of its bucket)
+     **/
+    public long getPercentile(double q) {
+        long n = count.get();
+        if (n == 0) return 0;
+        long wanted = (long) Math.ceil(q * n);
+        long seen = 0;
+        for (int b = 0; b < BUCKETS; b++) {
+            seen += bucket.get(b);
+            if (seen >= wanted) return Math.min(upperBound(b), max.get());
+        }
+        return max.get();
+    }
+
+    /**
+     * Forget everything recorded so far
+     **/
+    public void reset() {
+        for (int b = 0; b < BUCKETS; b++) bucket.set(b, 0);
+        count.set(0);
+        sum.set(0);
+        max.set(0);
+    }
+
+    // The bucket a value goes in: small values get one each, then SUB buckets per power of two
+    private static int bucketOf(long value) {
+        if (value < SUB) return (int) value;
+        int exp = 63 - Long.numberOfLeadingZeros(value);   // value is in [2^exp, 2^(exp+1))
+        int sub = (int) (value >>> (exp - SUB_BITS)) & (SUB - 1);
+        return SUB + (exp - SUB_BITS) * SUB + sub;
+    }
+
+    // The largest value that goes in the given bucket
+    private static long upperBound(int b) {
+        if (b < SUB) return b;
+        int exp = (b - SUB) / SUB + SUB_BITS;
+        int sub = (b - SUB) % SUB;
+        long width = 1L << (exp - SUB_BITS);
+        return ((long) (SUB + sub) << (exp - SUB_BITS)) + width - 1;
+    }
+}
@@ -0,0 +1,110 @@
+/***************
+ * InterpolationBuffer
+ * Spring 21: CSC340
+ * The client's buffer of the last few snapshots received, so the game can be drawn smoothly
+ * even though snapshots only come every few ticks (and never quite evenly spaced).
+ * The game is drawn INTERPOLATION_DELAY in the past, in between the two snapshots around that time.
+ * If the next snapshot is late, the last two are carried on (extrapolated) for a little while.
+ * What is drawn is worked out in the same arrays every frame, so drawing makes no garbage:
+ * a new snapshot to hold them is only made when a snapshot comes in (or the arrays grow).
+ ***************/
+public class InterpolationBuffer {
+    public static final long INTERPOLATION_DELAY = 100000000L;  // How far in the past to draw (nanoseconds)
+    public static final long MAX_EXTRAPOLATION = 250000000L;    // How far past the last snapshot to carry on (nanoseconds)
+    public static final long CLOCK_DRIFT = 500000L;  // How much later the server clock estimate may move with each snapshot
+
+    private final Snapshot[] ring;  // The snapshots received, oldest to newest
+    private int newest;   // Position of the newest snapshot in the ring
+    private int count;    // Number of snapshots in the ring
+    private long offset;  // Local time (nanoTime) at which the server was at tick 0, as best we can tell
+
+    // The cells drawn, worked out again every frame, and the snapshot holding them
+    private float[] cellX = new float[0];
+    private float[] cellY = new float[0];
+    private float[] cellR = new float[0];
+    private Snapshot drawn;
+    private Snapshot drawnBefore;  // What drawn is in between
+    private Snapshot drawnAfter;
+    private boolean drawnPast;
+
+    /**
+     * @param size The number of snapshots to keep
+     **/
+    public InterpolationBuffer(int size) {
+        this.ring = new Snapshot[size];
+        this.newest = -1;
+        this.count = 0;
+    }
+
+    /**
+     * Add a snapshot that just came in
+     * @param s The snapshot
+     * @param arrival When it came in (System.nanoTime)
+     **/
+    public synchronized void add(Snapshot s, long arrival) {
+        if (count > 0 && s.tick <= ring[newest].tick) return;  // Older than what we have, nothing to add
+        newest = (newest + 1) % ring.length;
+        ring[newest] = s;
+        if (count < ring.length) count++;
+
+        // The snapshot that got here fastest tells us the most about the server clock.  Later ones
+        // are only allowed to move the estimate a bit, in case the server is running slow.
+        long sample = arrival - s.tick*GameEngine.TICK_NANOS;
+        if (count == 1) offset = sample;
+        else offset = Math.min(offset + CLOCK_DRIFT, sample);
+    }
+
+    // The i-th newest snapshot (0 is the newest)
+    private Snapshot get(int i) {
+        return ring[(newest - i + ring.length) % ring.length];
+    }
+
+    /**
+     * Get what to draw right now
+     * @param now The current time (System.nanoTime)
+     * @returns The game a little in the past, in between two snapshots (or null if there is nothing yet).
+     *          It may be changed by the next call, so only draw it until then.
+     **/
+    public synchronized Snapshot sample(long now) {
+        if (count == 0) return null;
+        if (count == 1) return get(0);
+        double renderTick = (double) (now - offset - INTERPOLATION_DELAY) / GameEngine.TICK_NANOS;
+
+        // Find the snapshots on either side of the time to draw
+        Snapshot before = null;
+        Snapshot after = null;
+        for (int i = 0; i < count; i++) {
+            Snapshot s = get(i);
+            if (s.tick > renderTick) {
+                after = s;
+            } else {
+                before = s;
+                break;
+            }
+        }
+        if (before == null) return after;  // Everything is newer, just draw the oldest one
+        if (after == null) {
+            // Nothing newer has come in yet, so carry on from the last two (but not too far)
+            after = get(0);
+            before = get(1);
+            renderTick = Math.min(renderTick, after.tick + (double) MAX_EXTRAPOLATION / GameEngine.TICK_NANOS);
+        }
+        double t = (renderTick - before.tick) / (after.tick - before.tick);
+        boolean past = t < 1;
+        if (drawn == null || before != drawnBefore || after != drawnAfter || past != drawnPast) {
+            int cells = after.cellStart[after.playerCount];
+            if (cellX.length < cells) {
+                int size = Math.max(cells, cellX.length*2);
+                cellX = new float[size];
+                cellY = new float[size];
+                cellR = new float[size];
+            }
+            drawn = Snapshot.between(before, after, past, cellX, cellY, cellR);
+            drawnBefore = before;
+            drawnAfter = after;
+            drawnPast = past;
+        }
+        Snapshot.interpolate(before, after, t, drawn);
+        return drawn;
+    }
+}
@@ -0,0 +1,337 @@
+/***************
+ * LoadGenerator
+ * Spring 21: CSC340
+ * A load tool for a running GameServer: connects a number of bot clients that join and steer
+ * around like real players (same messages as App's Connection, but no window), and reports how
+ * well the server keeps up with them.
+ * Every REPORT_INTERVAL it prints, over all the bots:
+ *    the snapshots a second they get, the jitter (spread) of the time between snapshots,
+ *    the bytes they get, and the tick lag: how many ticks older a snapshot is when it arrives
+ *    than the fastest snapshot seen so far.
+ * Add bots a few at a time (RAMP bots a second) to see where the lag and jitter start climbing,
+ * that's about where the server's pusher or engine can't keep up any more.
+ *     java LoadGenerator [HOST] [PORT] [BOTS] [SECONDS] [RAMP]
+ * All the bots run on one Selector thread, so the tool itself stays small.
+ ***************/
+import java.awt.Color;
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.SocketChannel;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.Random;
+
+public class LoadGenerator {
+    public static final long REPORT_INTERVAL = 2000000000L;  // Nanoseconds between reports
+    public static final long STEER_INTERVAL = 100000000L;    // Nanoseconds between a bot's steering messages
+    public static final long BOOST_INTERVAL = 10000000000L;  // Bots boost now and then, this often on average
+    public static final long BOOST_LENGTH = 1000000000L;     // and for this long
+    public static final int WORST_BOTS = 10;                 // Number of bots listed at the end
+
+    // Numbers kept for each bot, for the last report interval and for the whole run
+    static class Stats {
+        long snapshots;
+        long bytes;
+        double gapSum;     // Time between snapshots (ms), for the jitter
+        double gapSumSq;
+        long gaps;
+        double lagSum;     // Tick lag of each snapshot
+        double lagMax;
+
+        void clear() {
+            snapshots = bytes = gaps = 0;
+            gapSum = gapSumSq = lagSum = lagMax = 0;
+        }
+
+        double jitter() {
+            if (gaps < 2) return 0;
+            double mean = gapSum / gaps;
+            return Math.sqrt(Math.max(0, gapSumSq / gaps - mean*mean));
+        }
+
+        double lag() { return snapshots == 0 ? 0 : lagSum / snapshots; }
+    }
+
+    // One bot: its socket, what it's doing, and how it's been served
+    static class Bot {
+        int number;
+        SocketChannel channel;
+        SelectionKey key;
+        ByteBuffer in = ByteBuffer.allocate(1 << 16);
+        ByteBuffer out = ByteBuffer.allocate(1 << 10);  // Waiting to be written (in write mode)
+        boolean closed;
+        double heading;     // Direction it's steering, in radians
+        double turnRate;    // How fast it turns (radians per second), changes now and then
+        long nextSteer;     // When to send the next steering message
+        long boostUntil;    // Boosting until then
+        long lastArrival;   // When the last snapshot came in (0 for none yet)
+        Stats recent = new Stats();
+        Stats total = new Stats();
+    }
+
+    String host;
+    int port;
+    Random rand = new Random();
+    ArrayList<Bot> bots = new ArrayList<>();
+    Selector selector;
+    long minOffset = Long.MAX_VALUE;   // Fastest arrival seen: nanoTime - tick*TICK_NANOS
+
+    public LoadGenerator(String host, int port) throws IOException {
+        this.host = host;
+        this.port = port;
+        this.selector = Selector.open();
+    }
+
+    public static void main(String[] args) throws Exception {
+        String host = "127.0.0.1";
+        int port = GameServer.DEFAULT_PORT;
+        int count = 100;
+        int seconds = 30;
+        int ramp = 0;
+        try {
+            if (args.length > 0) host = args[0];
+            if (args.length > 1) port = Integer.parseInt(args[1]);
+            if (args.length > 2) count = Integer.parseInt(args[2]);
+            if (args.length > 3) seconds = Integer.parseInt(args[3]);
+            if (args.length > 4) ramp = Integer.parseInt(args[4]);
+        } catch (NumberFormatException e) {
+            System.err.println("Usage: java LoadGenerator [HOST] [PORT] [BOTS] [SECONDS] [RAMP]");
+            System.err.println("       PORT, BOTS, SECONDS and RAMP (bots added a second, 0 for all at once) must be integers.");
+            System.exit(1);
+        }
+        new LoadGenerator(host, port).run(count, seconds, ramp);
+    }
+
+    /**
+     * Connect the bots and run them
+     * @param count The number of bots
+     * @param seconds How long to run for
+     * @param ramp Bots added a second (0 to add them all at the start)
+     **/
+    public void run(int count, int seconds, int ramp) throws IOException {
+        System.out.println("Load on " + host + ":" + port + ": " + count + " bots for " + seconds + "s" +
+                           (ramp > 0 ? ", adding " + ramp + " a second" : ""));
+        System.out.println("   time  bots  snaps/s  per bot (min/avg)  jitter ms (avg/max)  KB/s  lag ticks (avg/max)");
+        long start = System.nanoTime();
+        long end = start + seconds * 1000000000L;
+        long nextReport = start + REPORT_INTERVAL;
+        long lastReport = start;
+        while (System.nanoTime() < end) {
+            long now = System.nanoTime();
+            int due = ramp > 0 ? (int) Math.min(count, 1 + (now - start) * ramp / 1000000000L) : count;
+            while (bots.size() < due) connect();
+
+            selector.select(10);
+            now = System.nanoTime();
+            Iterator<SelectionKey> it = selector.selectedKeys().iterator();
+            while (it.hasNext()) {
+                SelectionKey key = it.next();
+                it.remove();
+                Bot b = (Bot) key.attachment();
+                if (key.isValid() && key.isReadable()) read(b, now);
+                if (key.isValid() && key.isWritable()) flush(b);
+            }
+            for (Bot b: bots) steer(b, now);
+
+            if (now >= nextReport) {
+                report(now - start, now - lastReport);
+                lastReport = now;
+                nextReport += REPORT_INTERVAL;
+            }
+        }
+        summary(System.nanoTime() - start);
+        for (Bot b: bots) close(b);
+        selector.close();
+    }
+
+    // Connect and join one more bot
+    private void connect() throws IOException {
+        Bot b = new Bot();
+        b.number = bots.size();
+        b.channel = SocketChannel.open(new InetSocketAddress(host, port));
+        b.channel.configureBlocking(false);
+        b.key = b.channel.register(selector, SelectionKey.OP_READ, b);
+        b.heading = rand.nextDouble() * 2 * Math.PI;
+        b.turnRate = rand.nextGaussian();
+        bots.add(b);
+        send(b, new JoinMessage("bot" + b.number, Color.getHSBColor(rand.nextFloat(), 0.8f, 0.9f)));
+    }
+
+    // Turn the bot a bit and tell the server, every STEER_INTERVAL.  Boost now and then.
+    private void steer(Bot b, long now) throws IOException {
+        if (b.closed || now < b.nextSteer) return;
+        double seconds = STEER_INTERVAL / 1e9;
+        if (rand.nextDouble() < seconds) b.turnRate = rand.nextGaussian();  // New turn about once a second
+        b.heading += b.turnRate * seconds;
+        b.nextSteer = now + STEER_INTERVAL;
+        send(b, new MovePlayerMessage(Math.cos(b.heading), Math.sin(b.heading)));
+
+        if (b.boostUntil == 0 && rand.nextDouble() < (double) STEER_INTERVAL / BOOST_INTERVAL) {
+            b.boostUntil = now + BOOST_LENGTH;
+            send(b, new BoostPlayerMessage(2*GameState.MIN_SPEED));
+        } else if (b.boostUntil != 0 && now >= b.boostUntil) {
+            b.boostUntil = 0;
+            send(b, new BoostPlayerMessage(GameState.MIN_SPEED));
+        }
+    }
+
+    // Queue a message for the bot and write as much as the socket takes
+    private void send(Bot b, Object message) throws IOException {
+        byte[] frame = MessageCodec.encode(message);
+        if (b.out.remaining() < frame.length) {
+            ByteBuffer bigger = ByteBuffer.allocate(Math.max(b.out.capacity()*2, b.out.position() + frame.length));
+            b.out.flip();
+            bigger.put(b.out);
+            b.out = bigger;
+        }
+        b.out.put(frame);
+        flush(b);
+    }
+
+    // Write what's waiting, and only watch for the socket being writable while something is left
+    private void flush(Bot b) {
+        if (b.closed) return;
+        try {
+            b.out.flip();
+            b.channel.write(b.out);
+            b.out.compact();
+            b.key.interestOps(b.out.position() > 0 ? SelectionKey.OP_READ | SelectionKey.OP_WRITE : SelectionKey.OP_READ);
+        } catch (IOException e) {
+            close(b);
+        }
+    }
+
+    // Read what's there, and count (and acknowledge) every snapshot in it
+    private void read(Bot b, long now) throws IOException {
+        int n;
+        try {
+            n = b.channel.read(b.in);
+        } catch (IOException e) {
+            n = -1;
+        }
+        if (n < 0) {
+            close(b);
+            return;
+        }
+        b.recent.bytes += n;
+        b.total.bytes += n;
+        ByteBuffer buf = b.in;
+        buf.flip();
+        while (buf.remaining() >= 4) {
+            int length = buf.getInt(buf.position());
+            if (length <= 0 || length > MessageCodec.MAX_FRAME_LENGTH) {
+                // Not a frame the server could have sent, so the rest of the stream can't be read
+                System.err.println("Bot " + b.number + ": invalid frame length " + length + ", closing it");
+                close(b);
+                return;
+            }
+            if (buf.remaining() < 4 + length) break;
+            byte type = buf.get(buf.position() + 4);
+            long tick = -1;
+            if (type == MessageCodec.SNAPSHOT) tick = buf.getLong(buf.position() + 5);
+            else if (type == MessageCodec.SNAPSHOT_DELTA) tick = buf.getLong(buf.position() + 13);
+            buf.position(buf.position() + 4 + length);
+            if (tick >= 0) {
+                snapshot(b, tick, now);
+                send(b, new AckMessage(tick));
+            }
+        }
+        buf.compact();
+        if (buf.position() >= 4 && buf.getInt(0) + 4 > buf.capacity()) {
+            // A frame bigger than the buffer is coming
+            ByteBuffer bigger = ByteBuffer.allocate(buf.getInt(0) + 4);
+            buf.flip();
+            bigger.put(buf);
+            b.in = bigger;
+        }
+    }
+
+    // Count a snapshot that just came in
+    private void snapshot(Bot b, long tick, long now) {
+        long offset = now - tick*GameEngine.TICK_NANOS;
+        if (offset < minOffset) minOffset = offset;
+        double lag = (double) (offset - minOffset) / GameEngine.TICK_NANOS;
+        double gap = b.lastArrival == 0 ? -1 : (now - b.lastArrival) / 1e6;
+        b.lastArrival = now;
+        for (Stats s: new Stats[] { b.recent, b.total }) {
+            s.snapshots++;
+            s.lagSum += lag;
+            s.lagMax = Math.max(s.lagMax, lag);
+            if (gap >= 0) {
+                s.gaps++;
+                s.gapSum += gap;
+                s.gapSumSq += gap*gap;
+            }
+        }
+    }
+
+    private void close(Bot b) {
+        if (b.closed) return;
+        b.closed = true;
+        b.key.cancel();
+        try { b.channel.close(); } catch (IOException ignore) { }
+    }
+
+    // Print one line over all the bots for the last interval, and start the next one
+    private void report(long elapsed, long interval) {
+        double seconds = interval / 1e9;
+        int open = 0;
+        long snapshots = 0;
+        long bytes = 0;
+        double minRate = Double.MAX_VALUE;
+        double jitterSum = 0;
+        double jitterMax = 0;
+        double lagSum = 0;
+        double lagMax = 0;
+        for (Bot b: bots) {
+            if (b.closed) continue;
+            Stats s = b.recent;
+            open++;
+            snapshots += s.snapshots;
+            bytes += s.bytes;
+            minRate = Math.min(minRate, s.snapshots / seconds);
+            jitterSum += s.jitter();
+            jitterMax = Math.max(jitterMax, s.jitter());
+            lagSum += s.lag();
+            lagMax = Math.max(lagMax, s.lagMax);
+            s.clear();
+        }
+        if (open == 0) {
+            System.out.printf("%6.0fs  no bots connected%n", elapsed / 1e9);
+            return;
+        }
+        System.out.printf("%6.0fs %5d %8.0f   %6.1f / %6.1f      %6.1f / %6.1f   %6.0f    %6.1f / %6.1f%n",
+                          elapsed / 1e9, open, snapshots / seconds, minRate, snapshots / seconds / open,
+                          jitterSum / open, jitterMax, bytes / seconds / 1024, lagSum / open, lagMax);
+    }
+
+    // Print the totals for the whole run, and the bots that were served worst
+    private void summary(long elapsed) {
+        double seconds = elapsed / 1e9;
+        long snapshots = 0;
+        long bytes = 0;
+        int closed = 0;
+        for (Bot b: bots) {
+            snapshots += b.total.snapshots;
+            bytes += b.total.bytes;
+            if (b.closed) closed++;
+        }
+        System.out.printf("Total: %d bots (%d disconnected), %.0f snapshots/s, %.0f KB/s%n",
+                          bots.size(), closed, snapshots / seconds, bytes / seconds / 1024);
+
+        ArrayList<Bot> worst = new ArrayList<>(bots);
+        worst.sort((x, y) -> Double.compare(y.total.lag(), x.total.lag()));
+        System.out.println("Worst served bots:");
+        System.out.println("    bot  snaps/s  jitter ms  KB/s  lag ticks (avg/max)");
+        for (int i = 0; i < Math.min(WORST_BOTS, worst.size()); i++) {
+            Bot b = worst.get(i);
+            Stats s = b.total;
+            System.out.printf("  %5d %8.1f   %8.1f %5.0f    %6.1f / %6.1f%s%n",
+                              b.number, s.snapshots / seconds, s.jitter(), s.bytes / seconds / 1024,
+                              s.lag(), s.lagMax, b.closed ? "  (disconnected)" : "");
+        }
+    }
+}
@@ -0,0 +1,556 @@
+/***************
+ * MessageCodec
+ * Spring 21: CSC340
+ * The binary wire format used between the GameServer and the clients.
+ * Every message is sent as one frame:
+ *    int length (of the rest of the frame), byte type, payload
+ * The payload only holds the primitive fields of the message, so none of the
+ * class descriptors, Color objects, etc. that Java serialization would send.
+ ***************/
+import java.awt.Color;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.UTFDataFormatException;
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+
+public class MessageCodec {
+    // Message types (the byte after the frame length)
+    public static final byte JOIN = 1;
+    public static final byte JOIN_RESPONSE = 2;
+    public static final byte MOVE_PLAYER = 3;
+    public static final byte BOOST_PLAYER = 4;
+    public static final byte STRING = 5;
+    public static final byte GAME_STATE = 6;
+    public static final byte SNAPSHOT = 7;
+    public static final byte SNAPSHOT_DELTA = 8;
+    public static final byte ACK = 9;
+
+    public static final int MAX_FRAME_LENGTH = 1 << 24;  // Anything bigger is a broken stream
+
+    /**
+     * Encode a message into a complete frame (length prefix included)
+     * @param message The message to encode
+     * @returns The bytes to write to the stream
+     **/
+    public static byte[] encode(Object message) throws IOException {
+        ByteArrayOutputStream bout = new ByteArrayOutputStream(256);
+        DataOutputStream out = new DataOutputStream(bout);
+        out.writeInt(0);   // Place holder for the length
+        if (message instanceof JoinMessage) {
+            JoinMessage m = (JoinMessage) message;
+            out.writeByte(JOIN);
+            out.writeUTF(m.name);
+            writeColor(out, m.color);
+        } else if (message instanceof JoinResponseMessage) {
+            JoinResponseMessage m = (JoinResponseMessage) message;
+            out.writeByte(JOIN_RESPONSE);
+            out.writeUTF(m.name);
+            out.writeInt(m.playerID);
+        } else if (message instanceof MovePlayerMessage) {
+            MovePlayerMessage m = (MovePlayerMessage) message;
+            out.writeByte(MOVE_PLAYER);
+            out.writeDouble(m.playerDX);
+            out.writeDouble(m.playerDY);
+        } else if (message instanceof BoostPlayerMessage) {
+            BoostPlayerMessage m = (BoostPlayerMessage) message;
+            out.writeByte(BOOST_PLAYER);
+            out.writeDouble(m.speed);
+        } else if (message instanceof StringMessage) {
+            StringMessage m = (StringMessage) message;
+            out.writeByte(STRING);
+            out.writeUTF(m.message);
+        } else if (message instanceof AckMessage) {
+            AckMessage m = (AckMessage) message;
+            out.writeByte(ACK);
+            out.writeLong(m.tick);
+        } else if (message instanceof GameState) {
+            out.writeByte(GAME_STATE);
+            writeGameState(out, (GameState) message);
+        } else if (message instanceof Snapshot) {
+            out.writeByte(SNAPSHOT);
+            writeSnapshot(out, (Snapshot) message);
+        } else {
+            throw new IOException("Cannot encode message: " + message);
+        }
+        return finish(bout, out);
+    }
+
+    /**
+     * Encode the changes from one snapshot to another into a complete frame.
+     * Only the players' new head cells and new lengths, and the added and removed snacks are sent.
+     * @param base The snapshot the client already has
+     * @param snap The snapshot the client should end up with
+     **/
+    public static byte[] encodeDelta(Snapshot base, Snapshot snap) throws IOException {
+        ByteArrayOutputStream bout = new ByteArrayOutputStream(256);
+        DataOutputStream out = new DataOutputStream(bout);
+        out.writeInt(0);   // Place holder for the length
+        out.writeByte(SNAPSHOT_DELTA);
+        out.writeLong(base.tick);
+        out.writeLong(snap.tick);
+
+        // Every player in the new snapshot (any player left out is gone)
+        out.writeInt(snap.playerCount);
+        int j = 0;
+        for (int i = 0; i < snap.playerCount; i++) {
+            int id = snap.playerID[i];
+            while (j < base.playerCount && base.playerID[j] < id) j++;
+            out.writeInt(id);
+            out.writeInt(snap.generation[i]);
+            out.writeLong(snap.headSeq[i]);
+            int length = snap.cellStart[i+1] - snap.cellStart[i];
+            if (j < base.playerCount && base.playerID[j] == id && base.generation[j] == snap.generation[i]) {
+                // Same body as before, just the cells pushed at the head since then
+                long pushed = snap.headSeq[i] - base.headSeq[j];
+                int sent = (int) Math.min(pushed, length);
+                int baseLength = base.cellStart[j+1] - base.cellStart[j];
+                if (pushed >= 0 && length - sent <= baseLength) {
+                    out.writeBoolean(false);
+                    out.writeInt(length);
+                    writeCells(out, snap, snap.cellStart[i], sent);
+                    continue;
+                }
+            }
+            // New player (or respawned) so send all of it
+            out.writeBoolean(true);
+            out.writeUTF(snap.name[i]);
+            writeColor(out, snap.appearance[i]);
+            out.writeInt(length);
+            writeCells(out, snap, snap.cellStart[i], length);
+        }
+
+        // Snacks removed, then snacks added (both in id order)
+        int removed = 0;
+        j = 0;
+        for (int i = 0; i < base.snackCount; i++) {
+            while (j < snap.snackCount && snap.snackID[j] < base.snackID[i]) j++;
+            if (j == snap.snackCount || snap.snackID[j] != base.snackID[i]) removed++;
+        }
+        out.writeInt(removed);
+        j = 0;
+        for (int i = 0; i < base.snackCount; i++) {
+            while (j < snap.snackCount && snap.snackID[j] < base.snackID[i]) j++;
+            if (j == snap.snackCount || snap.snackID[j] != base.snackID[i]) out.writeInt(base.snackID[i]);
+        }
+        int added = 0;
+        j = 0;
+        for (int i = 0; i < snap.snackCount; i++) {
+            while (j < base.snackCount && base.snackID[j] < snap.snackID[i]) j++;
+            if (j == base.snackCount || base.snackID[j] != snap.snackID[i]) added++;
+        }
+        out.writeInt(added);
+        j = 0;
+        for (int i = 0; i < snap.snackCount; i++) {
+            while (j < base.snackCount && base.snackID[j] < snap.snackID[i]) j++;
+            if (j == base.snackCount || base.snackID[j] != snap.snackID[i]) {
+                out.writeInt(snap.snackID[i]);
+                out.writeFloat(snap.snackX[i]);
+                out.writeFloat(snap.snackY[i]);
+                out.writeFloat(snap.snackR[i]);
+            }
+        }
+        return finish(bout, out);
+    }
+
+    // Close the stream and fill in the frame length
+    private static byte[] finish(ByteArrayOutputStream bout, DataOutputStream out) throws IOException {
+        out.close();
+        byte[] frame = bout.toByteArray();
+        ByteBuffer.wrap(frame).putInt(0, frame.length - 4);
+        return frame;
+    }
+
+    /**
+     * Write one message to the stream (caller is responsible for flushing)
+     **/
+    public static void writeMessage(DataOutputStream out, Object message) throws IOException {
+        out.write(encode(message));
+    }
+
+    /**
+     * Read the next message from the stream
+     * @returns The message read, or null if the stream ended cleanly between frames
+     **/
+    public static Object readMessage(DataInputStream in) throws IOException {
+        int length;
+        try {
+            length = in.readInt();
+        } catch (EOFException e) {
+            return null;  // Other side closed the stream
+        }
+        if (length <= 0 || length > MAX_FRAME_LENGTH)
+            throw new IOException("Invalid frame length: " + length);
+        byte[] frame = new byte[length];
+        in.readFully(frame);
+        return decodeFrame(ByteBuffer.wrap(frame));
+    }
+
+    /**
+     * Decode a whole frame (without the length prefix), failing if it is cut short
+     **/
+    public static Object decodeFrame(ByteBuffer frame) throws IOException {
+        try {
+            return decode(frame);
+        } catch (BufferUnderflowException e) {
+            throw new IOException("Truncated frame");
+        }
+    }
+
+    /**
+     * Decode a frame (without the length prefix)
+     **/
+    public static Object decode(ByteBuffer buf) throws IOException {
+        byte type = buf.get();
+        switch (type) {
+        case JOIN:
+            return new JoinMessage(readUTF(buf), readColor(buf));
+        case JOIN_RESPONSE:
+            return new JoinResponseMessage(readUTF(buf), buf.getInt());
+        case MOVE_PLAYER:
+            return new MovePlayerMessage(buf.getDouble(), buf.getDouble());
+        case BOOST_PLAYER:
+            return new BoostPlayerMessage(buf.getDouble());
+        case STRING:
+            return new StringMessage(readUTF(buf));
+        case ACK:
+            return new AckMessage(buf.getLong());
+        case GAME_STATE:
+            return readGameState(buf);
+        case SNAPSHOT:
+            return readSnapshot(buf);
+        case SNAPSHOT_DELTA:
+            return new SnapshotDeltaMessage(buf.getLong(), buf.getLong(), buf.slice());
+        default:
+            throw new IOException("Unrecognized message type: " + type);
+        }
+    }
+
+    // The game state: world size, then the players (name, color, cells head first), then the snacks.
+    // Positions are sent as floats, plenty for drawing.
+    private static void writeGameState(DataOutputStream out, GameState state) throws IOException {
+        out.writeDouble(state.maxX);
+        out.writeDouble(state.maxY);
+        out.writeDouble(state.minR);
+        out.writeInt(state.snackColor.getRGB());
+
+        ArrayList<GameState.Player> player = state.getPlayers();
+        out.writeInt(player.size());
+        for (GameState.Player p: player) {
+            out.writeUTF(p.getName());
+            writeColor(out, p.getAppearance());
+            out.writeInt(p.size());
+            for (int i = 0; i < p.size(); i++) {
+                out.writeFloat((float) p.getX(i));
+                out.writeFloat((float) p.getY(i));
+                out.writeFloat((float) p.getR(i));
+            }
+        }
+
+        ArrayList<GameState.Cell> snacks = state.getSnacks();
+        out.writeInt(snacks.size());
+        for (GameState.Cell s: snacks) {
+            out.writeFloat((float) s.x);
+            out.writeFloat((float) s.y);
+            out.writeFloat((float) s.r);
+        }
+    }
+
+    private static GameState readGameState(ByteBuffer buf) throws IOException {
+        double maxX = buf.getDouble();
+        double maxY = buf.getDouble();
+        GameState state = new GameState(maxX, maxY, false);
+        state.minR = buf.getDouble();
+        state.snackColor = new Color(buf.getInt());
+
+        int players = readCount(buf, 4);
+        for (int i = 0; i < players; i++) {
+            String name = readUTF(buf);
+            Color color = readColor(buf);
+            int cells = readCount(buf, 12);
+            if (cells == 0) throw new IOException("Player without cells");
+            GameState.Player p = state.new Player(name, buf.getFloat(), buf.getFloat(), buf.getFloat(), color);
+            for (int j = 1; j < cells; j++) {
+                p.addCell(buf.getFloat(), buf.getFloat(), buf.getFloat());
+            }
+            state.addPlayer(p);
+        }
+
+        int snacks = readCount(buf, 12);
+        for (int i = 0; i < snacks; i++) {
+            state.addSnack(state.new Cell(buf.getFloat(), buf.getFloat(), buf.getFloat()));
+        }
+        return state;
+    }
+
+    // A snapshot: tick, world size, the players (id, name, color, body), then the snacks (id, cell)
+    private static void writeSnapshot(DataOutputStream out, Snapshot snap) throws IOException {
+        out.writeLong(snap.tick);
+        out.writeDouble(snap.maxX);
+        out.writeDouble(snap.maxY);
+        out.writeInt(snap.snackColor.getRGB());
+
+        out.writeInt(snap.playerCount);
+        for (int i = 0; i < snap.playerCount; i++) {
+            out.writeInt(snap.playerID[i]);
+            out.writeInt(snap.generation[i]);
+            out.writeLong(snap.headSeq[i]);
+            out.writeUTF(snap.name[i]);
+            writeColor(out, snap.appearance[i]);
+            int length = snap.cellStart[i+1] - snap.cellStart[i];
+            out.writeInt(length);
+            writeCells(out, snap, snap.cellStart[i], length);
+        }
+
+        out.writeInt(snap.snackCount);
+        for (int i = 0; i < snap.snackCount; i++) {
+            out.writeInt(snap.snackID[i]);
+            out.writeFloat(snap.snackX[i]);
+            out.writeFloat(snap.snackY[i]);
+            out.writeFloat(snap.snackR[i]);
+        }
+    }
+
+    private static void writeCells(DataOutputStream out, Snapshot snap, int from, int count) throws IOException {
+        for (int c = from; c < from + count; c++) {
+            out.writeFloat(snap.cellX[c]);
+            out.writeFloat(snap.cellY[c]);
+            out.writeFloat(snap.cellR[c]);
+        }
+    }
+
+    private static Snapshot readSnapshot(ByteBuffer buf) throws IOException {
+        long tick = buf.getLong();
+        double maxX = buf.getDouble();
+        double maxY = buf.getDouble();
+        Color snackColor = new Color(buf.getInt());
+
+        int playerCount = readCount(buf, 4);
+        int[] playerID = new int[playerCount];
+        String[] name = new String[playerCount];
+        Color[] appearance = new Color[playerCount];
+        int[] generation = new int[playerCount];
+        long[] headSeq = new long[playerCount];
+        int[] cellStart = new int[playerCount+1];
+        float[] cellX = new float[16];
+        float[] cellY = new float[16];
+        float[] cellR = new float[16];
+        int c = 0;
+        for (int i = 0; i < playerCount; i++) {
+            playerID[i] = buf.getInt();
+            generation[i] = buf.getInt();
+            headSeq[i] = buf.getLong();
+            name[i] = readUTF(buf);
+            appearance[i] = readColor(buf);
+            int length = readCount(buf, 12);
+            cellStart[i] = c;
+            if (c + length > cellX.length) {
+                int cap = Math.max(cellX.length*2, c + length);
+                cellX = Arrays.copyOf(cellX, cap);
+                cellY = Arrays.copyOf(cellY, cap);
+                cellR = Arrays.copyOf(cellR, cap);
+            }
+            for (int k = 0; k < length; k++, c++) {
+                cellX[c] = buf.getFloat();
+                cellY[c] = buf.getFloat();
+                cellR[c] = buf.getFloat();
+            }
+        }
+        cellStart[playerCount] = c;
+
+        int snackCount = readCount(buf, 16);
+        int[] snackID = new int[snackCount];
+        float[] snackX = new float[snackCount];
+        float[] snackY = new float[snackCount];
+        float[] snackR = new float[snackCount];
+        for (int i = 0; i < snackCount; i++) {
+            snackID[i] = buf.getInt();
+            snackX[i] = buf.getFloat();
+            snackY[i] = buf.getFloat();
+            snackR[i] = buf.getFloat();
+        }
+        return new Snapshot(tick, maxX, maxY, snackColor,
+                            playerCount, playerID, name, appearance, generation, headSeq,
+                            cellStart, cellX, cellY, cellR,
+                            snackCount, snackID, snackX, snackY, snackR);
+    }
+
+    /**
+     * Apply a delta to the snapshot it was made against
+     * @param base The snapshot at message.baseTick
+     * @param message The delta
+     * @returns The snapshot at message.tick
+     **/
+    public static Snapshot applyDelta(Snapshot base, SnapshotDeltaMessage message) throws IOException {
+        if (base.tick != message.baseTick) throw new IOException("Delta applied to the wrong snapshot");
+        ByteBuffer buf = message.body.duplicate();
+        try {
+            int playerCount = readCount(buf, 4);
+            int[] playerID = new int[playerCount];
+            String[] name = new String[playerCount];
+            Color[] appearance = new Color[playerCount];
+            int[] generation = new int[playerCount];
+            long[] headSeq = new long[playerCount];
+            int[] cellStart = new int[playerCount+1];
+            float[] cellX = new float[Math.max(16, base.cellX.length)];
+            float[] cellY = new float[cellX.length];
+            float[] cellR = new float[cellX.length];
+            int c = 0;
+            int j = 0;
+            for (int i = 0; i < playerCount; i++) {
+                playerID[i] = buf.getInt();
+                generation[i] = buf.getInt();
+                headSeq[i] = buf.getLong();
+                boolean full = buf.get() != 0;
+                while (j < base.playerCount && base.playerID[j] < playerID[i]) j++;
+                if (full) {
+                    name[i] = readUTF(buf);
+                    appearance[i] = readColor(buf);
+                } else {
+                    if (j == base.playerCount || base.playerID[j] != playerID[i])
+                        throw new IOException("Delta for unknown player " + playerID[i]);
+                    name[i] = base.name[j];
+                    appearance[i] = base.appearance[j];
+                }
+                int length = readCount(buf, 0);
+                cellStart[i] = c;
+                if (c + length > cellX.length) {
+                    int cap = Math.max(cellX.length*2, c + length);
+                    cellX = Arrays.copyOf(cellX, cap);
+                    cellY = Arrays.copyOf(cellY, cap);
+                    cellR = Arrays.copyOf(cellR, cap);
+                }
+                // New head cells...
+                int sent = full ? length : (int) Math.min(headSeq[i] - base.headSeq[j], length);
+                for (int k = 0; k < sent; k++, c++) {
+                    cellX[c] = buf.getFloat();
+                    cellY[c] = buf.getFloat();
+                    cellR[c] = buf.getFloat();
+                }
+                // ...followed by what is left of the old body
+                int kept = length - sent;
+                if (kept > 0) {
+                    if (kept > base.cellStart[j+1] - base.cellStart[j]) throw new IOException("Invalid delta length");
+                    System.arraycopy(base.cellX, base.cellStart[j], cellX, c, kept);
+                    System.arraycopy(base.cellY, base.cellStart[j], cellY, c, kept);
+                    System.arraycopy(base.cellR, base.cellStart[j], cellR, c, kept);
+                    c += kept;
+                }
+            }
+            cellStart[playerCount] = c;
+
+            // Merge the old snacks (minus the removed ones) with the added ones, keeping id order
+            int removed = readCount(buf, 4);
+            int[] removedID = new int[removed];
+            for (int i = 0; i < removed; i++) removedID[i] = buf.getInt();
+            int added = readCount(buf, 16);
+            int cap = base.snackCount - removed + added;
+            if (cap < 0) throw new IOException("Invalid snack count");
+            int[] snackID = new int[cap];
+            float[] snackX = new float[cap];
+            float[] snackY = new float[cap];
+            float[] snackR = new float[cap];
+            int n = 0;
+            int r = 0;
+            int b = 0;
+            for (int a = 0; a <= added; a++) {
+                // Next added snack (or "infinity" once done) goes after all smaller old ones
+                int addID = a < added ? buf.getInt() : Integer.MAX_VALUE;
+                while (b < base.snackCount && base.snackID[b] < addID) {
+                    while (r < removed && removedID[r] < base.snackID[b]) r++;
+                    if (r < removed && removedID[r] == base.snackID[b]) {
+                        b++;
+                        continue;
+                    }
+                    if (n == cap) throw new IOException("Invalid snack count");
+                    snackID[n] = base.snackID[b];
+                    snackX[n] = base.snackX[b];
+                    snackY[n] = base.snackY[b];
+                    snackR[n] = base.snackR[b];
+                    n++;
+                    b++;
+                }
+                if (a < added) {
+                    if (n == cap) throw new IOException("Invalid snack count");
+                    snackID[n] = addID;
+                    snackX[n] = buf.getFloat();
+                    snackY[n] = buf.getFloat();
+                    snackR[n] = buf.getFloat();
+                    n++;
+                }
+            }
+
+            return new Snapshot(message.tick, base.maxX, base.maxY, base.snackColor,
+                                playerCount, playerID, name, appearance, generation, headSeq,
+                                cellStart, cellX, cellY, cellR,
+                                n, snackID, snackX, snackY, snackR);
+        } catch (BufferUnderflowException e) {
+            throw new IOException("Truncated frame");
+        }
+    }
+
+    // A color may be missing (e.g. nothing was picked), so it's sent with a flag
+    private static void writeColor(DataOutputStream out, Color color) throws IOException {
+        out.writeBoolean(color != null);
+        if (color != null) out.writeInt(color.getRGB());
+    }
+
+    private static Color readColor(ByteBuffer buf) {
+        if (buf.get() == 0) return null;
+        return new Color(buf.getInt(), true);
+    }
+
+    // Read what DataOutputStream.writeUTF wrote, the way DataInputStream.readUTF does: that is
+    // modified UTF-8, where NUL takes two bytes and a character outside the basic plane (an emoji)
+    // is written as its two surrogates, three bytes each, which plain UTF-8 can't decode
+    private static String readUTF(ByteBuffer buf) throws IOException {
+        int length = buf.getShort() & 0xFFFF;
+        if (length > buf.remaining()) throw new IOException("Truncated string");
+        byte[] b = buf.array();
+        int start = buf.arrayOffset() + buf.position();
+        int end = start + length;
+        buf.position(buf.position() + length);
+
+        // Names are mostly plain ASCII, a byte each
+        int i = start;
+        while (i < end && b[i] > 0) i++;
+        if (i == end) return new String(b, start, length, StandardCharsets.ISO_8859_1);
+
+        char[] chars = new char[length];
+        int n = 0;
+        i = start;
+        while (i < end) {
+            int c = b[i] & 0xFF;
+            if (c < 0x80) {
+                chars[n++] = (char) c;
+                i++;
+            } else if ((c & 0xE0) == 0xC0) {
+                if (i + 1 >= end || (b[i+1] & 0xC0) != 0x80) throw new UTFDataFormatException("Malformed string");
+                chars[n++] = (char) ((c & 0x1F) << 6 | (b[i+1] & 0x3F));
+                i += 2;
+            } else if ((c & 0xF0) == 0xE0) {
+                if (i + 2 >= end || (b[i+1] & 0xC0) != 0x80 || (b[i+2] & 0xC0) != 0x80)
+                    throw new UTFDataFormatException("Malformed string");
+                chars[n++] = (char) ((c & 0x0F) << 12 | (b[i+1] & 0x3F) << 6 | (b[i+2] & 0x3F));
+                i += 3;
+            } else {
+                throw new UTFDataFormatException("Malformed string");
+            }
+        }
+        return new String(chars, 0, n);
+    }
+
+    // Read an element count and make sure the frame can actually hold that many elements
+    private static int readCount(ByteBuffer buf, int elementSize) throws IOException {
+        int count = buf.getInt();
+        if (count < 0 || (long) count * elementSize > buf.remaining())
+            throw new IOException("Invalid element count: " + count);
+        return count;
+    }
+}
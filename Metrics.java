@@ -0,0 +1,217 @@
+/***************
+ * Metrics
+ * Spring 21: CSC340
+ * The server's measurements, all in one place: counters (things that only go up, like messages
+ * received), gauges (values read when asked for, like the number of players) and histograms
+ * (like how long each phase of a tick takes).
+ * They can be read over JMX (the bean networm:type=Metrics, e.g. with jconsole), or as plain text,
+ * one "name value" line each, from http://127.0.0.1:PORT/metrics once startEndpoint has been called.
+ * Times are recorded in nanoseconds but shown in microseconds (the names end in _us).
+ ***************/
+import com.sun.net.httpserver.HttpServer;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.lang.management.ManagementFactory;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.nio.charset.StandardCharsets;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.LongSupplier;
+import javax.management.Attribute;
+import javax.management.AttributeList;
+import javax.management.AttributeNotFoundException;
+import javax.management.DynamicMBean;
+import javax.management.InstanceAlreadyExistsException;
+import javax.management.JMException;
+import javax.management.MBeanAttributeInfo;
+import javax.management.MBeanInfo;
+import javax.management.MBeanOperationInfo;
+import javax.management.MBeanParameterInfo;
+import javax.management.ObjectName;
+
+public class Metrics {
+    public static final String JMX_NAME = "networm:type=Metrics";
+    static private Metrics singleton = null;
+
+    private final ConcurrentHashMap<String, LongAdder> counters = new ConcurrentHashMap<>();
+    private final ConcurrentHashMap<String, LongSupplier> gauges = new ConcurrentHashMap<>();
+    private final ConcurrentHashMap<String, Histogram> histograms = new ConcurrentHashMap<>();
+    private HttpServer endpoint;
+    private Debug debug = Debug.getInstance();
+
+    public static synchronized Metrics getInstance() {
+        if (singleton == null)
+            singleton = new Metrics();
+        return singleton;
+    }
+
+    private Metrics() {
+    }
+
+    /**
+     * Get (or create) a counter
+     **/
+    public LongAdder counter(String name) {
+        return counters.computeIfAbsent(name, n -> new LongAdder());
+    }
+
+    /**
+     * Get (or create) a histogram
+     **/
+    public Histogram histogram(String name) {
+        return histograms.computeIfAbsent(name, n -> new Histogram());
+    }
+
+    /**
+     * Add (or replace) a gauge
+     * @param value Called to get the value whenever the metrics are read
+     **/
+    public void gauge(String name, LongSupplier value) {
+        gauges.put(name, value);
+    }
+
+    /**
+     * Remove all the metrics whose names start with the prefix (e.g. those of a connection that closed)
+     **/
+    public void remove(String prefix) {
+        counters.keySet().removeIf(n -> n.startsWith(prefix));
+        gauges.keySet().removeIf(n -> n.startsWith(prefix));
+        histograms.keySet().removeIf(n -> n.startsWith(prefix));
+    }
+
+    /**
+     * Forget what the histograms have recorded (e.g. to measure just the next few minutes)
+     **/
+    public void reset() {
+        for (Histogram h: histograms.values()) h.reset();
+    }
+
+    /**
+     * @returns The current value of every metric, by name.  Each histogram is given as a few
+     *          values: how many were recorded, and the mean, 50th, 90th and 99th percentile and max.
+     **/
+    public TreeMap<String, Number> values() {
+        TreeMap<String, Number> values = new TreeMap<>();
+        for (Map.Entry<String, LongAdder> e: counters.entrySet()) {
+            values.put(e.getKey(), e.getValue().sum());
+        }
+        for (Map.Entry<String, LongSupplier> e: gauges.entrySet()) {
+            values.put(e.getKey(), e.getValue().getAsLong());
+        }
+        for (Map.Entry<String, Histogram> e: histograms.entrySet()) {
+            String name = e.getKey();
+            Histogram h = e.getValue();
+            values.put(name + ".count", h.getCount());
+            values.put(name + ".mean_us", h.getMean() / 1000);
+            values.put(name + ".p50_us", h.getPercentile(0.50) / 1000.0);
+            values.put(name + ".p90_us", h.getPercentile(0.90) / 1000.0);
+            values.put(name + ".p99_us", h.getPercentile(0.99) / 1000.0);
+            values.put(name + ".max_us", h.getMax() / 1000.0);
+        }
+        return values;
+    }
+
+    /**
+     * @returns Every metric as a "name value" line
+     **/
+    public String toText() {
+        StringBuilder res = new StringBuilder();
+        for (Map.Entry<String, Number> e: values().entrySet()) {
+            res.append(e.getKey());
+            res.append(' ');
+            Number v = e.getValue();
+            if (v instanceof Double) res.append(String.format("%.1f", v.doubleValue()));
+            else res.append(v);
+            res.append('\n');
+        }
+        return res.toString();
+    }
+
+    /**
+     * Make the metrics readable over JMX (does nothing if they already are)
+     **/
+    public void registerJmx() {
+        try {
+            ManagementFactory.getPlatformMBeanServer().registerMBean(new MetricsBean(), new ObjectName(JMX_NAME));
+        } catch (InstanceAlreadyExistsException e) {
+            // Already there (another server in this JVM)
+        } catch (JMException e) {
+            debug.println(1, "[Metrics] Could not register with JMX: " + e.getMessage());
+        }
+    }
+
+    /**
+     * Serve the metrics as plain text on http://127.0.0.1:port/metrics
+     * Only on the loopback address, it's for looking at the server from the machine it runs on.
+     **/
+    public synchronized void startEndpoint(int port) {
+        if (endpoint != null) return;
+        try {
+            endpoint = HttpServer.create(new InetSocketAddress(InetAddress.getLoopbackAddress(), port), 0);
+            endpoint.createContext("/metrics", exchange -> {
+                byte[] body = toText().getBytes(StandardCharsets.UTF_8);
+                exchange.getResponseHeaders().set("Content-Type", "text/plain; charset=utf-8");
+                exchange.sendResponseHeaders(200, body.length);
+                try (OutputStream out = exchange.getResponseBody()) {
+                    out.write(body);
+                }
+            });
+            endpoint.start();
+            debug.println(1, "[Metrics] Serving metrics on http://127.0.0.1:" + port + "/metrics");
+        } catch (IOException e) {
+            debug.println(1, "[Metrics] Could not serve metrics on port " + port + ": " + e.getMessage());
+            endpoint = null;
+        }
+    }
+
+    // The metrics as a JMX bean: one read only attribute per value, and a reset operation
+    private class MetricsBean implements DynamicMBean {
+        public Object getAttribute(String name) throws AttributeNotFoundException {
+            Number v = values().get(name);
+            if (v == null) throw new AttributeNotFoundException(name);
+            return v;
+        }
+
+        public AttributeList getAttributes(String[] names) {
+            TreeMap<String, Number> values = values();
+            AttributeList list = new AttributeList();
+            for (String name: names) {
+                Number v = values.get(name);
+                if (v != null) list.add(new Attribute(name, v));
+            }
+            return list;
+        }
+
+        public void setAttribute(Attribute attribute) throws AttributeNotFoundException {
+            throw new AttributeNotFoundException("Metrics are read only: " + attribute.getName());
+        }
+
+        public AttributeList setAttributes(AttributeList attributes) {
+            return new AttributeList();
+        }
+
+        public Object invoke(String action, Object[] params, String[] signature) {
+            if ("reset".equals(action)) reset();
+            return null;
+        }
+
+        // Built each time, since metrics come and go with the connections
+        public MBeanInfo getMBeanInfo() {
+            TreeMap<String, Number> values = values();
+            MBeanAttributeInfo[] attributes = new MBeanAttributeInfo[values.size()];
+            int i = 0;
+            for (Map.Entry<String, Number> e: values.entrySet()) {
+                attributes[i++] = new MBeanAttributeInfo(e.getKey(), e.getValue().getClass().getName(),
+                                                         e.getKey(), true, false, false);
+            }
+            MBeanOperationInfo[] operations = {
+                new MBeanOperationInfo("reset", "Forget what the histograms have recorded",
+                                       new MBeanParameterInfo[0], "void", MBeanOperationInfo.ACTION)
+            };
+            return new MBeanInfo(Metrics.class.getName(), "NetWorm server metrics", attributes, null, operations, null);
+        }
+    }
+}
@@ -0,0 +1,136 @@
+/***************
+ * NioServer
+ * Spring 21: CSC340
+ * Non-blocking version of the GameServer's communication loop.
+ * Instead of one thread per connection, a small fixed number of I/O threads each
+ * run a Selector over many channels.  The first I/O thread also accepts new clients,
+ * which are then handed out to the I/O threads in turn.
+ ***************/
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.util.Iterator;
+import java.util.concurrent.ConcurrentLinkedQueue;
+
+public class NioServer implements Runnable {
+    GameServer server;
+    int port;
+    IoLoop[] loop;   // The I/O threads
+    int nextLoop;    // The I/O thread the next client goes to
+    Debug debug;
+
+    /**
+     * @param server The game server the connections belong to
+     * @param port The port to listen on
+     * @param ioThreads The number of I/O threads to use
+     **/
+    public NioServer(GameServer server, int port, int ioThreads) {
+        this.server = server;
+        this.port = port;
+        this.loop = new IoLoop[ioThreads];
+        this.nextLoop = 0;
+        this.debug = Debug.getInstance();
+    }
+
+    /**
+     * Open the server channel and run the I/O threads (the first one runs in this thread)
+     **/
+    public void run() {
+        try {
+            for (int i = 0; i < loop.length; i++) loop[i] = new IoLoop();
+            ServerSocketChannel serverChannel = ServerSocketChannel.open();
+            serverChannel.bind(new InetSocketAddress(port));
+            serverChannel.configureBlocking(false);
+            serverChannel.register(loop[0].selector, SelectionKey.OP_ACCEPT);
+            for (int i = 1; i < loop.length; i++) {
+                new Thread(loop[i], "NioServer-io-" + i).start();
+            }
+            loop[0].run();
+            serverChannel.close();
+        } catch (IOException e) {
+            debug.println(0,"[NioServer] ABORTING: An error occurred while creating server channel. " +
+                    e.getMessage());
+            System.exit(1);
+        }
+    }
+
+    // Accept all waiting clients and hand them to the I/O threads in turn
+    private void accept(ServerSocketChannel serverChannel) throws IOException {
+        SocketChannel channel;
+        while ((channel = serverChannel.accept()) != null) {
+            channel.configureBlocking(false);
+            IoLoop l = loop[nextLoop];
+            nextLoop = (nextLoop + 1) % loop.length;
+            final SocketChannel ch = channel;
+            l.execute(() -> l.register(ch));
+        }
+    }
+
+    /**
+     * One I/O thread: waits on its Selector and reads/writes whichever of its channels are ready.
+     * Other threads never touch the selector directly, they queue a task with execute().
+     **/
+    class IoLoop implements Runnable {
+        Selector selector;
+        ConcurrentLinkedQueue<Runnable> tasks;
+
+        IoLoop() throws IOException {
+            this.selector = Selector.open();
+            this.tasks = new ConcurrentLinkedQueue<>();
+        }
+
+        /**
+         * Run the given task on this I/O thread (soon)
+         **/
+        void execute(Runnable task) {
+            tasks.add(task);
+            selector.wakeup();
+        }
+
+        // Start watching a new client channel
+        private void register(SocketChannel channel) {
+            try {
+                String name = channel.getRemoteAddress().toString();
+                GameServer.ChannelConnection c = server.addConnection(channel, name, this);
+                c.key = channel.register(selector, SelectionKey.OP_READ, c);
+            } catch (IOException e) {
+                debug.println(1, "[NioServer] Error registering client: " + e.getMessage());
+                try { channel.close(); } catch (IOException ignore) { }
+            }
+        }
+
+        public void run() {
+            while (!server.done) {
+                try {
+                    selector.select();
+                } catch (IOException e) {
+                    debug.println(1, "[NioServer] Select failed: " + e.getMessage());
+                    return;
+                }
+                Runnable task;
+                while ((task = tasks.poll()) != null) task.run();
+
+                Iterator<SelectionKey> it = selector.selectedKeys().iterator();
+                while (it.hasNext()) {
+                    SelectionKey key = it.next();
+                    it.remove();
+                    if (!key.isValid()) continue;
+                    if (key.isAcceptable()) {
+                        try {
+                            accept((ServerSocketChannel) key.channel());
+                        } catch (IOException e) {
+                            debug.println(1, "[NioServer] Error accepting client: " + e.getMessage());
+                        }
+                        continue;
+                    }
+                    GameServer.ChannelConnection c = (GameServer.ChannelConnection) key.attachment();
+                    if (key.isReadable()) c.handleRead();
+                    if (key.isValid() && key.isWritable()) c.handleWrite();
+                }
+            }
+        }
+    }
+}
@@ -0,0 +1,106 @@
+/***************
+ * OutboundQueue
+ * Spring 21: CSC340
+ * The frames waiting to be written to one connection, drained by that connection's writer.
+ * The queue is bounded: when it is full, the oldest snapshot frames still waiting are dropped
+ * to make room for the newer snapshot (a client only needs the latest one, deltas are made against
+ * what it acknowledged, not against what was queued).  Control frames (join responses, etc.) are never dropped.
+ ***************/
+import java.util.ArrayDeque;
+import java.util.Iterator;
+
+public class OutboundQueue {
+    // One queued frame
+    private static class Entry {
+        Frame frame;
+        boolean snapshot;  // Can be dropped for a newer snapshot
+        Entry(Frame frame, boolean snapshot) {
+            this.frame = frame;
+            this.snapshot = snapshot;
+        }
+    }
+
+    private final int capacity;
+    private final ArrayDeque<Entry> queue;
+    private long sent;      // Frames taken by the writer
+    private long sentBytes; // Bytes in those frames
+    private long dropped;   // Snapshot frames dropped because the writer fell behind
+    private boolean closed;
+
+    /**
+     * @param capacity The number of frames that can wait before snapshots get dropped
+     **/
+    public OutboundQueue(int capacity) {
+        this.capacity = capacity;
+        this.queue = new ArrayDeque<>(capacity);
+    }
+
+    /**
+     * Queue a snapshot frame, dropping stale snapshots if the queue is full
+     * @returns false if the frame was dropped (queue closed, or full of control frames)
+     **/
+    public synchronized boolean offerSnapshot(Frame frame) {
+        if (closed) return false;
+        if (queue.size() >= capacity) {
+            // Drop the oldest snapshots that never got sent
+            Iterator<Entry> it = queue.iterator();
+            while (queue.size() >= capacity && it.hasNext()) {
+                if (it.next().snapshot) {
+                    it.remove();
+                    dropped++;
+                }
+            }
+            if (queue.size() >= capacity) {
+                dropped++;
+                return false;
+            }
+        }
+        queue.add(new Entry(frame, true));
+        notifyAll();
+        return true;
+    }
+
+    /**
+     * Queue a control frame, these are never dropped (so may go past the capacity)
+     **/
+    public synchronized void offerControl(Frame frame) {
+        if (closed) return;
+        queue.add(new Entry(frame, false));
+        notifyAll();
+    }
+
+    /**
+     * Wait for the next frame to write
+     * @returns The frame, or null once the queue is closed
+     **/
+    public synchronized Frame take() throws InterruptedException {
+        while (queue.isEmpty() && !closed) wait();
+        return poll();
+    }
+
+    /**
+     * @returns The next frame to write, or null if there is none
+     **/
+    public synchronized Frame poll() {
+        Entry e = queue.poll();
+        if (e == null) return null;
+        sent++;
+        sentBytes += e.frame.length();
+        return e.frame;
+    }
+
+    /**
+     * Stop accepting frames and wake up the writer
+     **/
+    public synchronized void close() {
+        closed = true;
+        queue.clear();
+        notifyAll();
+    }
+
+    public synchronized boolean isEmpty() { return queue.isEmpty(); }
+    public synchronized int depth() { return queue.size(); }
+    public synchronized long sent() { return sent; }
+    public synchronized long sentBytes() { return sentBytes; }
+    public synchronized long dropped() { return dropped; }
+}
@@ -0,0 +1,55 @@
+/***************
+ * PlayerInput
+ * Spring 21: CSC340
+ * The latest input (direction and speed) sent for one player, waiting for the next tick.
+ * Connection threads just overwrite it, and the engine takes it at the start of each tick,
+ * so handling input never has to wait for the engine lock.  Only the latest value matters,
+ * so an input overwritten before the tick took it is simply replaced.
+ ***************/
+import java.util.concurrent.atomic.AtomicLong;
+
+public class PlayerInput {
+    public static final long NONE = Long.MIN_VALUE;   // No new input since the last tick
+
+    private final AtomicLong direction = new AtomicLong(NONE);  // dx and dy packed as two floats
+    private final AtomicLong speed = new AtomicLong(NONE);      // The bits of the speed
+
+    /**
+     * Set the latest direction (kept as floats, plenty for a direction)
+     **/
+    public void setDirection(double dx, double dy) {
+        // Adding 0 turns -0.0 into 0.0, so the packed value can never be NONE
+        long x = Float.floatToRawIntBits((float) dx + 0.0f);
+        long y = Float.floatToRawIntBits((float) dy + 0.0f);
+        direction.set(x << 32 | y & 0xFFFFFFFFL);
+    }
+
+    /**
+     * Set the latest speed
+     **/
+    public void setSpeed(double s) {
+        if (Double.isNaN(s)) return;
+        speed.set(Double.doubleToRawLongBits(s));
+    }
+
+    /**
+     * Take the direction set since the last call
+     * @returns The packed direction (see getDX/getDY), or NONE
+     **/
+    public long takeDirection() {
+        return direction.getAndSet(NONE);
+    }
+
+    /**
+     * Take the speed set since the last call
+     * @returns The speed, or NaN if none was set
+     **/
+    public double takeSpeed() {
+        long s = speed.getAndSet(NONE);
+        return s == NONE ? Double.NaN : Double.longBitsToDouble(s);
+    }
+
+    // Unpack a direction taken with takeDirection
+    public static double getDX(long direction) { return Float.intBitsToFloat((int) (direction >>> 32)); }
+    public static double getDY(long direction) { return Float.intBitsToFloat((int) direction); }
+}
@@ -0,0 +1,300 @@
+/***************
+ * ReplayLog
+ * Spring 21: CSC340
+ * Records a game as it is played, so it can be played again later (see ReplayPlayer).
+ * Rather than the whole game every tick it records what goes into each tick: the input the
+ * engine applied, and the players that joined or left.  Playing those through the engine again
+ * gives the same game, since a tick only depends on the game before it and on that input.
+ * Every KEYFRAME_INTERVAL ticks the whole game is written too (a keyframe), so a replay can start
+ * from (or skip to) any of them instead of playing from the very beginning.
+ *
+ * Recording a tick is a few puts into a buffer in memory, never a system call: a background
+ * thread takes what has been recorded and copies it into the file.  The file is written through
+ * a memory mapping, REGION_SIZE bytes at a time, and the operating system writes the pages out
+ * in the background too.  A keyframe is the exception: the whole game is written into the buffer
+ * on the engine's thread, so the tick that writes it takes longer (about 1.3-3.5 ms for a 2.7 MB
+ * game, once every KEYFRAME_INTERVAL ticks).  Only the (much slower) writing into the file is
+ * left to the background thread.  If that thread falls MAX_PENDING bytes behind, or writing the
+ * file fails, recording stops.  The file is only ever added to.
+ * The format (all big endian):
+ *     int MAGIC, int VERSION, int TICK_RATE
+ *     then records, each starting with its type:
+ *     'K' int length, long tick, long seed, the game (GameState.writeKeyframe), as it is after tick
+ *     'J' int id, int name length, the name's chars, byte has color, int color (a player joined)
+ *     'L' int id (a player left)
+ *     'T' long tick, int count, then count inputs: int id, byte flags (INPUT_DIRECTION, INPUT_SPEED),
+ *         long direction (PlayerInput packed), double speed
+ *     A 0 where the next record would start marks the end.
+ ***************/
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+
+public class ReplayLog {
+    public static final int MAGIC = 0x4E57524C;   // "NWRL"
+    public static final int VERSION = 2;
+    public static final int KEYFRAME_INTERVAL = 300;   // Ticks between keyframes (5 seconds)
+    public static final int REGION_SIZE = 16 << 20;    // Bytes mapped at a time
+    public static final int MAX_PENDING = 64 << 20;    // Most bytes recorded and not yet written before giving up
+    public static final byte KEYFRAME = 'K';
+    public static final byte JOIN = 'J';
+    public static final byte LEAVE = 'L';
+    public static final byte TICK = 'T';
+    public static final byte END = 0;
+    public static final int INPUT_DIRECTION = 1;
+    public static final int INPUT_SPEED = 2;
+    static final int INPUT_SIZE = 4 + 1 + 8 + 8;
+
+    private final Path path;
+    private volatile FileChannel channel;  // null once closed, or after writing failed
+    private MappedByteBuffer region;  // The part of the file being written (by the writer thread)
+    private long regionStart;         // Where in the file the region starts
+    private ByteBuffer tickInput;     // The input of the tick being recorded (written out at endTick)
+    private int tickInputs;
+    private long lastKeyframe = -1;   // Tick of the last keyframe written (-1 for none yet)
+    private Debug debug = Debug.getInstance();
+
+    // Records waiting for the writer thread (guarded by pendingLock), and the ones it is writing.
+    // The two are swapped each time, so once they are big enough nothing new is made.
+    private final Object pendingLock = new Object();
+    private ByteBuffer pending;
+    private ByteBuffer writing;
+    private boolean closing;          // No more records, the writer finishes up (guarded by pendingLock)
+    private final Thread writer;
+
+    /**
+     * Start a new log (replacing any file already there)
+     * @param path The file to write
+     **/
+    public ReplayLog(Path path) throws IOException {
+        this.path = path;
+        channel = FileChannel.open(path, StandardOpenOption.CREATE, StandardOpenOption.READ,
+                                   StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING);
+        tickInput = ByteBuffer.allocate(64*INPUT_SIZE);
+        pending = ByteBuffer.allocate(1 << 16);
+        writing = ByteBuffer.allocate(1 << 16);
+        map(0, REGION_SIZE);
+        region.putInt(MAGIC).putInt(VERSION).putInt(GameEngine.TICK_RATE);
+        region.put(region.position(), END);
+        writer = new Thread(this::writeLoop, "ReplayLog writer");
+        writer.setDaemon(true);
+        writer.start();
+    }
+
+    /**
+     * @returns true if the log is still being written (false once closed, or after it failed)
+     **/
+    public boolean isOpen() {
+        return channel != null;
+    }
+
+    /**
+     * @returns true if a keyframe should be written after the given tick
+     **/
+    public boolean keyframeDue(long tick) {
+        return lastKeyframe < 0 || tick - lastKeyframe >= KEYFRAME_INTERVAL;
+    }
+
+    /**
+     * Write a keyframe: the whole game as it is after the given tick.
+     * The game's random number generator is seeded anew and the seed recorded, so the
+     * replay's generator carries on exactly as this one does.
+     **/
+    public void keyframe(long tick, GameState state) {
+        if (channel == null) return;
+        long seed = state.rand.nextLong();
+        state.rand.setSeed(seed);
+        int size = state.keyframeSize();
+        synchronized (pendingLock) {
+            ByteBuffer out = stage(1 + 4 + 8 + 8 + size);
+            if (out == null) return;
+            out.put(KEYFRAME).putInt(size).putLong(tick).putLong(seed);
+            int start = out.position();
+            state.writeKeyframe(out);
+            out.putInt(start - 20, out.position() - start);   // What it really took
+            pendingLock.notify();
+        }
+        lastKeyframe = tick;
+    }
+
+    /**
+     * Record a player joining (in the order it happens with the ticks)
+     **/
+    public void join(int id, String name, java.awt.Color color) {
+        if (channel == null || lastKeyframe < 0) return;  // The first keyframe will have it
+        synchronized (pendingLock) {
+            ByteBuffer out = stage(1 + 4 + 4 + 2*name.length() + 5);
+            if (out == null) return;
+            out.put(JOIN).putInt(id).putInt(name.length());
+            for (int i = 0; i < name.length(); i++) out.putChar(name.charAt(i));
+            out.put((byte) (color != null ? 1 : 0));   // A player may have no color
+            out.putInt(color != null ? color.getRGB() : 0);
+            pendingLock.notify();
+        }
+    }
+
+    /**
+     * Record a player leaving
+     **/
+    public void leave(int id) {
+        if (channel == null || lastKeyframe < 0) return;
+        synchronized (pendingLock) {
+            ByteBuffer out = stage(1 + 4);
+            if (out == null) return;
+            out.put(LEAVE).putInt(id);
+            pendingLock.notify();
+        }
+    }
+
+    /**
+     * Start recording the input of a tick (followed by input calls, then endTick)
+     **/
+    public void beginTick() {
+        tickInput.clear();
+        tickInputs = 0;
+    }
+
+    /**
+     * Record the input the engine applied to a player this tick
+     * @param flags Which of the two it got (INPUT_DIRECTION, INPUT_SPEED)
+     * @param direction The direction (packed as PlayerInput does it)
+     * @param speed The speed
+     **/
+    public void input(int id, int flags, long direction, double speed) {
+        if (tickInput.remaining() < INPUT_SIZE) {
+            ByteBuffer more = ByteBuffer.allocate(tickInput.capacity()*2);
+            tickInput.flip();
+            more.put(tickInput);
+            tickInput = more;
+        }
+        tickInput.putInt(id).put((byte) flags).putLong(direction).putDouble(speed);
+        tickInputs++;
+    }
+
+    /**
+     * Finish recording the input of a tick
+     * @param tick The tick the input was applied in
+     **/
+    public void endTick(long tick) {
+        if (channel == null || lastKeyframe < 0) return;
+        synchronized (pendingLock) {
+            ByteBuffer out = stage(1 + 8 + 4 + tickInput.position());
+            if (out == null) return;
+            tickInput.flip();
+            out.put(TICK).putLong(tick).putInt(tickInputs).put(tickInput);
+            pendingLock.notify();   // Wake the writer (it only waits when there is nothing to write)
+        }
+    }
+
+    /**
+     * Finish the log: write out what is still waiting and cut the file down to what was written.
+     * The log can't be written after this.
+     **/
+    public void close() {
+        synchronized (pendingLock) {
+            closing = true;
+            pendingLock.notify();
+        }
+        try {
+            writer.join();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        if (channel == null) return;   // Writing failed, it's already closed
+        try {
+            long end = regionStart + region.position() + 1;   // Keep the end marker
+            region.force();
+            region = null;
+            channel.truncate(end);
+            channel.close();
+        } catch (IOException e) {
+            // Can happen where a file can't be cut while mapped, the end marker still ends it
+            debug.println(2, "[ReplayLog] Could not finish " + path + ": " + e.getMessage());
+        }
+        channel = null;
+    }
+
+    // Make room for a record of n bytes in the pending buffer (holding pendingLock).
+    // Returns the buffer to put it in, or null if the writer is too far behind (recording stops),
+    // or if it has stopped.
+    private ByteBuffer stage(int n) {
+        if (closing || channel == null) return null;
+        if (pending.remaining() >= n) return pending;
+        int needed = pending.position() + n;
+        if (needed > MAX_PENDING) {
+            debug.println(1, "[ReplayLog] Stopped recording to " + path + ": writing can't keep up");
+            closing = true;
+            return null;
+        }
+        ByteBuffer more = ByteBuffer.allocate(Math.max(needed, Math.min(MAX_PENDING, pending.capacity()*2)));
+        pending.flip();
+        more.put(pending);
+        pending = more;
+        return pending;
+    }
+
+    // Wait for records and copy them into the file, until closed (or writing fails)
+    private void writeLoop() {
+        while (channel != null) {
+            synchronized (pendingLock) {
+                while (pending.position() == 0 && !closing) {
+                    try {
+                        pendingLock.wait();
+                    } catch (InterruptedException e) {
+                        return;
+                    }
+                }
+                if (pending.position() == 0) return;   // Closing, and all written
+                // Take the records, leaving the other buffer to record into meanwhile
+                ByteBuffer full = pending;
+                pending = writing;
+                writing = full;
+            }
+            writing.flip();
+            if (!reserve(writing.remaining() + 1)) {
+                // Nothing more can be written, so stop recording and drop what is waiting
+                synchronized (pendingLock) {
+                    closing = true;
+                    pending.clear();
+                }
+                return;
+            }
+            region.put(writing);
+            region.put(region.position(), END);
+            writing.clear();
+            // This one gets recorded into next: make it as big as the other (a keyframe fits), here
+            // rather than on the engine's thread
+            int capacity;
+            synchronized (pendingLock) {
+                capacity = pending.capacity();
+            }
+            if (writing.capacity() < capacity) writing = ByteBuffer.allocate(capacity);
+        }
+    }
+
+    // Make sure there are n bytes left in the region, moving it on through the file if not
+    private boolean reserve(int n) {
+        if (region.remaining() >= n) return true;
+        try {
+            map(regionStart + region.position(), Math.max(REGION_SIZE, n));
+            return true;
+        } catch (IOException e) {
+            debug.println(1, "[ReplayLog] Stopped recording to " + path + ": " + e.getMessage());
+            try {
+                channel.close();
+            } catch (IOException ignore) {
+            }
+            channel = null;
+            return false;
+        }
+    }
+
+    // Map size bytes of the file from start (growing the file)
+    private void map(long start, int size) throws IOException {
+        region = channel.map(FileChannel.MapMode.READ_WRITE, start, size);
+        regionStart = start;
+    }
+}
@@ -0,0 +1,298 @@
+/***************
+ * ReplayPlayer
+ * Spring 21: CSC340
+ * Plays a game recorded with ReplayLog through an engine of its own, at any speed: the
+ * recorded input is fed to the engine one tick at a time, so getEngine().getSnapshot() shows the
+ * game just as it was played (the App draws it like a local game).  It can jump to any tick,
+ * starting from the keyframe before it.
+ * Run on its own it plays a log as fast as it can and reports how long the ticks took, e.g. to
+ * look into a slow tick a server recorded:
+ *     java ReplayPlayer FILE [FROM_TICK] [TICKS]
+ ***************/
+import java.awt.Color;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.PrintStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
+import java.util.Arrays;
+import java.util.concurrent.locks.LockSupport;
+
+public class ReplayPlayer implements Runnable {
+    public static final int MAX_CATCH_UP_TICKS = 5;   // Most ticks played back to back when it falls behind
+
+    private final Path path;
+    private final ByteBuffer log;     // The whole log, mapped
+    private long[] keyframePosition = new long[16];   // Where each keyframe is in the log
+    private long[] keyframeTick = new long[16];       // and the tick it was taken after
+    private int keyframes;
+    private long firstTick;           // First and last tick that can be shown
+    private long lastTick;
+    private final GameEngine engine;
+    private volatile double speed = 1.0;    // 1 for real time, 0 to pause
+    private volatile long seekTo = -1;      // Tick to jump to (-1 for none)
+    private volatile boolean stopped;
+    private volatile Thread playing;        // The thread in run (to wake it up when stopped)
+    private Debug debug = Debug.getInstance();
+
+    /**
+     * Open a replay log, ready to play from its first keyframe
+     * @param path The log
+     **/
+    public ReplayPlayer(Path path) throws IOException {
+        this.path = path;
+        try (FileChannel channel = FileChannel.open(path, StandardOpenOption.READ)) {
+            if (channel.size() > Integer.MAX_VALUE) throw new IOException(path + " is too big to replay (over 2GB)");
+            log = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+        }
+        if (log.remaining() < 12 || log.getInt() != ReplayLog.MAGIC) throw new IOException(path + " is not a replay log");
+        int version = log.getInt();
+        if (version != ReplayLog.VERSION) throw new IOException(path + " is replay log version " + version + ", not " + ReplayLog.VERSION);
+        if (log.getInt() != GameEngine.TICK_RATE) throw new IOException(path + " was recorded at a different tick rate");
+        index();
+        if (keyframes == 0) throw new IOException(path + " has no keyframes");
+        engine = new GameEngine(1);
+        load(0);
+    }
+
+    // Find the keyframes (and the last tick) by skipping through the records
+    private void index() throws IOException {
+        try {
+            while (log.hasRemaining()) {
+                int start = log.position();
+                byte type = log.get();
+                if (type == ReplayLog.END) break;
+                if (type == ReplayLog.KEYFRAME) {
+                    int size = log.getInt();
+                    long tick = log.getLong();
+                    if (keyframes == keyframePosition.length) {
+                        keyframePosition = Arrays.copyOf(keyframePosition, keyframes*2);
+                        keyframeTick = Arrays.copyOf(keyframeTick, keyframes*2);
+                    }
+                    keyframePosition[keyframes] = start;
+                    keyframeTick[keyframes++] = tick;
+                    if (keyframes == 1) firstTick = tick;
+                    lastTick = Math.max(lastTick, tick);
+                    log.position(log.position() + 8 + size);
+                } else if (type == ReplayLog.JOIN) {
+                    log.getInt();
+                    int length = log.getInt();
+                    log.position(log.position() + 2*length + 5);
+                } else if (type == ReplayLog.LEAVE) {
+                    log.getInt();
+                } else if (type == ReplayLog.TICK) {
+                    lastTick = log.getLong();
+                    int count = log.getInt();
+                    log.position(log.position() + count*ReplayLog.INPUT_SIZE);
+                } else {
+                    throw new IOException(path + " has an unknown record at " + start);
+                }
+            }
+        } catch (RuntimeException e) {
+            // Cut short (e.g. the server died while recording): play what is there
+            debug.println(2, "[ReplayPlayer] " + path + " ends early, it has up to tick " + lastTick);
+        }
+    }
+
+    /**
+     * @returns The engine playing the replay (to get the snapshots from)
+     **/
+    public GameEngine getEngine() {
+        return engine;
+    }
+
+    /**
+     * @returns The first tick of the replay
+     **/
+    public long getFirstTick() {
+        return firstTick;
+    }
+
+    /**
+     * @returns The last tick of the replay
+     **/
+    public long getLastTick() {
+        return lastTick;
+    }
+
+    /**
+     * Set how fast to play
+     * @param speed 1 for real time, 2 for twice as fast, 0.5 for half... 0 to pause
+     **/
+    public void setSpeed(double speed) {
+        this.speed = Math.max(0, speed);
+    }
+
+    public double getSpeed() {
+        return speed;
+    }
+
+    /**
+     * Jump to a tick (done by the thread playing the replay, from the keyframe before it)
+     **/
+    public void seek(long tick) {
+        seekTo = Math.max(firstTick, Math.min(lastTick, tick));
+    }
+
+    /**
+     * Stop playing (run returns)
+     **/
+    public void stop() {
+        stopped = true;
+        Thread t = playing;
+        if (t != null) LockSupport.unpark(t);
+    }
+
+    /**
+     * Play the replay, a tick every TICK_NANOS divided by the speed, until it ends or is stopped
+     **/
+    public void run() {
+        playing = Thread.currentThread();
+        long nextTick = System.nanoTime();
+        while (!stopped) {
+            long target = seekTo;
+            if (target >= 0) {
+                seekTo = -1;
+                playTo(target);
+                nextTick = System.nanoTime();
+                continue;
+            }
+            double s = speed;
+            long now = System.nanoTime();
+            if (s == 0) {
+                // Paused
+                LockSupport.parkNanos(GameEngine.TICK_NANOS);
+                nextTick = now;
+                continue;
+            }
+            if (now < nextTick) {
+                LockSupport.parkNanos(nextTick - now);
+                continue;
+            }
+            if (!playTick()) {
+                debug.println(2, "[ReplayPlayer] End of the replay, tick " + engine.tick);
+                break;
+            }
+            nextTick += (long) (GameEngine.TICK_NANOS / s);
+            if (now - nextTick > MAX_CATCH_UP_TICKS*GameEngine.TICK_NANOS) nextTick = now;  // Can't keep up, don't try to
+        }
+        playing = null;
+    }
+
+    /**
+     * Jump to the given tick: load the keyframe before it, then play the ticks up to it
+     **/
+    public synchronized void playTo(long tick) {
+        int k = Arrays.binarySearch(keyframeTick, 0, keyframes, tick);
+        if (k < 0) k = Math.max(0, -k - 2);   // The keyframe before
+        // Carrying on from here is quicker when it's after that keyframe already
+        if (engine.tick > tick || engine.tick < keyframeTick[k]) load(k);
+        while (engine.tick < tick && playTick()) { }
+    }
+
+    // Load keyframe k
+    private void load(int k) {
+        log.position((int) keyframePosition[k]);
+        log.get();
+        log.getInt();
+        long tick = log.getLong();
+        long seed = log.getLong();
+        engine.load(GameState.readKeyframe(log, seed), tick);
+    }
+
+    /**
+     * Play the next tick of the log (and the joins and leaves before it)
+     * @returns false if the log has ended
+     **/
+    public synchronized boolean playTick() {
+        try {
+            while (log.hasRemaining()) {
+                byte type = log.get();
+                if (type == ReplayLog.END) break;
+                if (type == ReplayLog.KEYFRAME) {
+                    // Already there, just carry on with the random numbers the recording did
+                    int size = log.getInt();
+                    log.getLong();
+                    long seed = log.getLong();
+                    synchronized (engine) {
+                        engine.gameState.rand.setSeed(seed);
+                    }
+                    log.position(log.position() + size);
+                } else if (type == ReplayLog.JOIN) {
+                    int id = log.getInt();
+                    char[] name = new char[log.getInt()];
+                    for (int i = 0; i < name.length; i++) name[i] = log.getChar();
+                    boolean hasColor = log.get() != 0;
+                    int rgb = log.getInt();
+                    Color color = hasColor ? new Color(rgb, true) : null;
+                    int got = engine.addPlayer(new String(name), color);
+                    if (got != id) debug.println(1, "[ReplayPlayer] Replay has gone wrong: player " + id + " came back as " + got);
+                } else if (type == ReplayLog.LEAVE) {
+                    engine.removePlayer(log.getInt());
+                } else if (type == ReplayLog.TICK) {
+                    long tick = log.getLong();
+                    int count = log.getInt();
+                    if (tick != engine.tick + 1) debug.println(1, "[ReplayPlayer] Replay has gone wrong: tick " + tick + " played as " + (engine.tick + 1));
+                    for (int i = 0; i < count; i++) {
+                        int id = log.getInt();
+                        byte flags = log.get();
+                        long d = log.getLong();
+                        double s = log.getDouble();
+                        if ((flags & ReplayLog.INPUT_DIRECTION) != 0) engine.setPlayerDirection(id, PlayerInput.getDX(d), PlayerInput.getDY(d));
+                        if ((flags & ReplayLog.INPUT_SPEED) != 0) engine.setPlayerSpeed(id, s);
+                    }
+                    engine.step();
+                    return true;
+                } else {
+                    return false;
+                }
+            }
+        } catch (RuntimeException e) {
+            // The log was cut short in the middle of a record
+        }
+        return false;
+    }
+
+    public static void main(String[] args) throws IOException {
+        if (args.length < 1) {
+            System.err.println("Usage: java ReplayPlayer FILE [FROM_TICK] [TICKS]");
+            System.exit(2);
+        }
+        // The engine prints each player it adds
+        PrintStream out = System.out;
+        System.setOut(new PrintStream(OutputStream.nullOutputStream()));
+        ReplayPlayer player = new ReplayPlayer(Paths.get(args[0]));
+        long from = args.length > 1 ? Long.parseLong(args[1]) : player.getFirstTick();
+        long ticks = args.length > 2 ? Long.parseLong(args[2]) : Long.MAX_VALUE;
+        long start = System.nanoTime();
+        player.playTo(from);
+        long seekTime = System.nanoTime() - start;
+
+        Histogram tickTime = new Histogram();
+        long slowestTick = -1;
+        long played = 0;
+        start = System.nanoTime();
+        while (played < ticks) {
+            long time = System.nanoTime();
+            if (!player.playTick()) break;
+            long took = System.nanoTime() - time;
+            if (took > tickTime.getMax()) slowestTick = player.getEngine().tick;
+            tickTime.record(took);
+            played++;
+        }
+        long total = System.nanoTime() - start;
+        System.setOut(out);
+
+        Snapshot s = player.getEngine().getSnapshot();
+        System.out.println(args[0] + ": ticks " + player.getFirstTick() + " to " + player.getLastTick());
+        System.out.printf("jumped to tick %d in %.1f ms%n", from, seekTime / 1e6);
+        System.out.printf("played %d ticks in %.1f ms (%.0f ticks/s, %.0fx real time)%n", played, total / 1e6,
+                          played * 1e9 / Math.max(1, total), played * 1e9 / Math.max(1, total) / GameEngine.TICK_RATE);
+        System.out.printf("tick: mean %.1f us, p99 %.1f us, slowest %.1f us (tick %d)%n", tickTime.getMean() / 1000,
+                          tickTime.getPercentile(0.99) / 1000.0, tickTime.getMax() / 1000.0, slowestTick);
+        System.out.println("at tick " + s.tick + ": " + s.getPlayerCount() + " players, " + s.getSnackCount() + " snacks");
+    }
+}
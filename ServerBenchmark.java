@@ -0,0 +1,140 @@
+/***************
+ * ServerBenchmark
+ * Spring 21: CSC340
+ * Compares the GameServer modes (thread, virtual, nio) under many clients.
+ * Starts a server in this JVM, connects the given number of clients to it, and reports
+ * how many snapshots get delivered, the bytes sent, the threads used and the heap used.
+ * The clients all run on one Selector thread so they don't add threads of their own.
+ * Run it once per mode, e.g.
+ *     java ServerBenchmark thread 2000 20
+ *     java ServerBenchmark virtual 2000 20
+ ***************/
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.PrintStream;
+import java.lang.management.ManagementFactory;
+import java.lang.management.MemoryMXBean;
+import java.lang.management.ThreadMXBean;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.SocketChannel;
+import java.util.Iterator;
+
+public class ServerBenchmark {
+    public static final int PORT = 15340;
+
+    // A benchmark client: counts the frames it gets and acknowledges every snapshot
+    static class Client {
+        SocketChannel channel;
+        ByteBuffer readBuffer = ByteBuffer.allocate(1 << 16);
+        long frames;
+        long bytes;
+    }
+
+    public static void main(String[] args) throws Exception {
+        if (args.length < 1) {
+            System.err.println("Usage: java ServerBenchmark thread|virtual|nio [CLIENTS] [SECONDS]");
+            System.exit(1);
+        }
+        GameServer.Mode mode = GameServer.Mode.valueOf(args[0].toUpperCase());
+        int clients = args.length > 1 ? Integer.parseInt(args[1]) : 500;
+        int seconds = args.length > 2 ? Integer.parseInt(args[2]) : 10;
+        Debug.getInstance().setLevel(0);
+        PrintStream out = System.out;
+        System.setOut(new PrintStream(OutputStream.nullOutputStream()));  // The server prints every join
+
+        // Start the server
+        GameServer server = new GameServer(PORT, mode);
+        Thread serverThread = new Thread(server);
+        serverThread.setDaemon(true);
+        serverThread.start();
+        Thread.sleep(500);
+
+        // Connect and join all of the clients
+        Selector selector = Selector.open();
+        Client[] client = new Client[clients];
+        for (int i = 0; i < clients; i++) {
+            Client c = new Client();
+            c.channel = SocketChannel.open(new InetSocketAddress("127.0.0.1", PORT));
+            c.channel.write(ByteBuffer.wrap(MessageCodec.encode(new JoinMessage("bot" + i, null))));
+            c.channel.write(ByteBuffer.wrap(MessageCodec.encode(new MovePlayerMessage(Math.cos(i), Math.sin(i)))));
+            c.channel.configureBlocking(false);
+            c.channel.register(selector, SelectionKey.OP_READ, c);
+            client[i] = c;
+        }
+        out.println("Mode " + mode + (mode == GameServer.Mode.VIRTUAL && !VirtualThreads.isAvailable() ? " (no virtual threads on this JVM)" : "")
+                    + ": " + clients + " clients connected, measuring for " + seconds + "s");
+
+        // Read (and acknowledge) everything for the given time
+        ThreadMXBean threads = ManagementFactory.getThreadMXBean();
+        MemoryMXBean memory = ManagementFactory.getMemoryMXBean();
+        int maxThreads = 0;
+        long maxHeap = 0;
+        long start = System.nanoTime();
+        long end = start + seconds * 1000000000L;
+        while (System.nanoTime() < end) {
+            selector.select(100);
+            Iterator<SelectionKey> it = selector.selectedKeys().iterator();
+            while (it.hasNext()) {
+                SelectionKey key = it.next();
+                it.remove();
+                read((Client) key.attachment());
+            }
+            maxThreads = Math.max(maxThreads, threads.getThreadCount());
+            maxHeap = Math.max(maxHeap, memory.getHeapMemoryUsage().getUsed());
+        }
+        double elapsed = (System.nanoTime() - start) / 1e9;
+
+        long frames = 0;
+        long bytes = 0;
+        long minFrames = Long.MAX_VALUE;
+        for (Client c: client) {
+            frames += c.frames;
+            bytes += c.bytes;
+            minFrames = Math.min(minFrames, c.frames);
+        }
+        out.printf("  snapshots/s (all clients): %.0f%n", frames / elapsed);
+        out.printf("  snapshots/s per client:    %.1f avg, %.1f min%n", frames / elapsed / clients, minFrames / elapsed);
+        out.printf("  KB/s received:             %.0f%n", bytes / elapsed / 1024);
+        out.printf("  peak platform threads:     %d%n", maxThreads);
+        out.printf("  peak heap used:            %.1f MB%n", maxHeap / 1048576.0);
+        System.exit(0);
+    }
+
+    // Read what's there, count every whole frame and acknowledge the snapshot tick in it
+    private static void read(Client c) throws IOException {
+        int n = c.channel.read(c.readBuffer);
+        if (n < 0) {
+            c.channel.close();
+            return;
+        }
+        c.bytes += n;
+        ByteBuffer buf = c.readBuffer;
+        buf.flip();
+        while (buf.remaining() >= 4) {
+            int length = buf.getInt(buf.position());
+            if (length <= 0 || length > MessageCodec.MAX_FRAME_LENGTH) {
+                throw new IOException("Invalid frame length: " + length);
+            }
+            if (buf.remaining() < 4 + length) break;
+            byte type = buf.get(buf.position() + 4);
+            long tick = -1;
+            if (type == MessageCodec.SNAPSHOT) tick = buf.getLong(buf.position() + 5);
+            else if (type == MessageCodec.SNAPSHOT_DELTA) tick = buf.getLong(buf.position() + 13);
+            if (tick >= 0) {
+                c.frames++;
+                c.channel.write(ByteBuffer.wrap(MessageCodec.encode(new AckMessage(tick))));
+            }
+            buf.position(buf.position() + 4 + length);
+        }
+        buf.compact();
+        if (buf.position() >= 4 && buf.getInt(0) + 4 > buf.capacity()) {
+            ByteBuffer bigger = ByteBuffer.allocate(buf.getInt(0) + 4);
+            buf.flip();
+            bigger.put(buf);
+            c.readBuffer = bigger;
+        }
+    }
+}
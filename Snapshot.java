@@ -0,0 +1,504 @@
+/***************
+ * Snapshot
+ * Spring 21: CSC340
+ * An immutable copy of the game at one tick, flattened into plain arrays.
+ * This is what the server sends (in full, or as a delta against an older snapshot)
+ * and what the client draws.
+ * Players are kept in increasing id order and snacks in increasing id order,
+ * so two snapshots can be compared with a simple merge.
+ * The first time a snapshot is filtered it puts its snacks and cells in a grid, so cutting
+ * out the view of each client only looks at the part of the world near that client.
+ ***************/
+import java.awt.Color;
+import java.awt.geom.Rectangle2D;
+import java.io.PrintStream;
+import java.util.ArrayList;
+import java.util.Arrays;
+
+public final class Snapshot {
+    public static final double MIN_VIEW_WIDTH = 50; // Minimum dimensions of a player's view
+    public static final double MIN_VIEW_HEIGHT = 50;
+    public static final double INDEX_BUCKET = 64;   // Width and height of a bucket of the grid filter uses
+
+    final long tick;        // Engine tick this snapshot was taken at
+    final double maxX;      // The range of the game
+    final double maxY;
+    final Color snackColor;
+
+    // The players
+    final int playerCount;
+    final int[] playerID;
+    final String[] name;
+    final Color[] appearance;
+    final int[] generation;  // See GameState.Player
+    final long[] headSeq;
+    final int[] cellStart;   // Cells of player i are cellStart[i] .. cellStart[i+1]-1, head first
+    final float[] cellX;
+    final float[] cellY;
+    final float[] cellR;
+
+    // The snacks
+    final int snackCount;
+    final int[] snackID;
+    final float[] snackX;
+    final float[] snackY;
+    final float[] snackR;
+
+    // The grids filter looks things up in, made the first time it is needed (null until then).
+    // Any thread may make them, making them twice is harmless.
+    private volatile Index index;
+
+    // The snacks and the player cells by position
+    private static final class Index {
+        final Grid snacks;
+        final Grid cells;
+        final int[] cellOwner;   // The player (position) each cell belongs to
+
+        Index(Snapshot s) {
+            snacks = new Grid(s.snackX, s.snackY, s.snackR, s.snackCount);
+            cells = new Grid(s.cellX, s.cellY, s.cellR, s.cellStart[s.playerCount]);
+            cellOwner = new int[s.cellStart[s.playerCount]];
+            for (int p = 0; p < s.playerCount; p++) {
+                Arrays.fill(cellOwner, s.cellStart[p], s.cellStart[p+1], p);
+            }
+        }
+    }
+
+    // Points bucketed by position, laid out bucket after bucket: the entries of (hashed) bucket b
+    // are entry[start[b]] .. entry[start[b+1]-1].  Made once and only read after that.
+    private static final class Grid {
+        final float[] x;
+        final float[] y;
+        final float[] r;
+        final int mask;
+        final int[] start;
+        final int[] entry;   // Position of each point in x, y, r
+        final float reach;   // Biggest radius, how far outside its bucket a point can reach
+
+        Grid(float[] x, float[] y, float[] r, int n) {
+            this.x = x;
+            this.y = y;
+            this.r = r;
+            int buckets = 64;
+            while (buckets < n) buckets *= 2;
+            mask = buckets - 1;
+            start = new int[buckets + 1];
+            entry = new int[n];
+            float biggest = 0;
+            for (int i = 0; i < n; i++) {
+                start[bucket(x[i], y[i]) + 1]++;
+                if (r[i] > biggest) biggest = r[i];
+            }
+            reach = biggest;
+            for (int b = 0; b < buckets; b++) start[b+1] += start[b];
+            int[] fill = Arrays.copyOf(start, buckets);
+            for (int i = 0; i < n; i++) entry[fill[bucket(x[i], y[i])]++] = i;
+        }
+
+        private int bucket(float px, float py) {
+            return bucket((int) Math.floor(px / INDEX_BUCKET), (int) Math.floor(py / INDEX_BUCKET));
+        }
+
+        private int bucket(int bx, int by) {
+            return (bx * 73856093 ^ by * 19349663) & mask;
+        }
+
+        /**
+         * Find the points touching an area
+         * @returns Their positions, in increasing order (found[0] is how many, they follow it),
+         *          or null if the area covers more buckets than there are (just go through them all)
+         **/
+        int[] find(double left, double top, double right, double bottom) {
+            int minBX = (int) Math.floor((left - reach) / INDEX_BUCKET);
+            int maxBX = (int) Math.floor((right + reach) / INDEX_BUCKET);
+            int minBY = (int) Math.floor((top - reach) / INDEX_BUCKET);
+            int maxBY = (int) Math.floor((bottom + reach) / INDEX_BUCKET);
+            if ((long) (maxBX - minBX + 1)*(maxBY - minBY + 1) > mask + 1) return null;
+            int[] found = new int[17];
+            int n = 0;
+            for (int by = minBY; by <= maxBY; by++) {
+                for (int bx = minBX; bx <= maxBX; bx++) {
+                    int b = bucket(bx, by);
+                    for (int k = start[b]; k < start[b+1]; k++) {
+                        int i = entry[k];
+                        if (x[i]+r[i] >= left && x[i]-r[i] <= right &&
+                            y[i]+r[i] >= top && y[i]-r[i] <= bottom) {
+                            if (n + 1 == found.length) found = Arrays.copyOf(found, found.length*2);
+                            found[++n] = i;
+                        }
+                    }
+                }
+            }
+            // Different buckets can hash to the same one, which then got gone through twice
+            Arrays.sort(found, 1, n + 1);
+            int kept = 0;
+            for (int k = 1; k <= n; k++) {
+                if (kept == 0 || found[k] != found[kept]) found[++kept] = found[k];
+            }
+            found[0] = kept;
+            return found;
+        }
+    }
+
+    Snapshot(long tick, double maxX, double maxY, Color snackColor,
+             int playerCount, int[] playerID, String[] name, Color[] appearance, int[] generation, long[] headSeq,
+             int[] cellStart, float[] cellX, float[] cellY, float[] cellR,
+             int snackCount, int[] snackID, float[] snackX, float[] snackY, float[] snackR) {
+        this.tick = tick;
+        this.maxX = maxX;
+        this.maxY = maxY;
+        this.snackColor = snackColor;
+        this.playerCount = playerCount;
+        this.playerID = playerID;
+        this.name = name;
+        this.appearance = appearance;
+        this.generation = generation;
+        this.headSeq = headSeq;
+        this.cellStart = cellStart;
+        this.cellX = cellX;
+        this.cellY = cellY;
+        this.cellR = cellR;
+        this.snackCount = snackCount;
+        this.snackID = snackID;
+        this.snackX = snackX;
+        this.snackY = snackY;
+        this.snackR = snackR;
+    }
+
+    /**
+     * Take a snapshot of the given game state.
+     * The caller must hold whatever lock keeps the state from changing meanwhile.
+     * @param state The game state to copy
+     * @param tick The tick the game state is at
+     **/
+    public static Snapshot of(GameState state, long tick) {
+        ArrayList<GameState.Player> player = state.getPlayers();
+        int playerCount = player.size();
+        int cells = 0;
+        for (GameState.Player p: player) cells += p.size();
+        int ids = state.getPlayerIDLimit();
+
+        int[] playerID = new int[playerCount];
+        String[] name = new String[playerCount];
+        Color[] appearance = new Color[playerCount];
+        int[] generation = new int[playerCount];
+        long[] headSeq = new long[playerCount];
+        int[] cellStart = new int[playerCount+1];
+        float[] cellX = new float[cells];
+        float[] cellY = new float[cells];
+        float[] cellR = new float[cells];
+        int c = 0;
+        int n = 0;
+        for (int id = 0; id < ids; id++) {
+            // Going by id (rather than down the list) keeps the players in id order
+            GameState.Player p = state.getPlayer(id);
+            if (p == null) continue;
+            playerID[n] = id;
+            name[n] = p.getName();
+            appearance[n] = p.getAppearance();
+            generation[n] = p.generation;
+            headSeq[n] = p.headSeq;
+            cellStart[n] = c;
+            for (int j = 0; j < p.size(); j++) {
+                cellX[c] = (float) p.getX(j);
+                cellY[c] = (float) p.getY(j);
+                cellR[c] = (float) p.getR(j);
+                c++;
+            }
+            n++;
+        }
+        cellStart[playerCount] = c;
+
+        // Each chunk has its snacks in id order, so merging the chunks puts them all in id order:
+        // a heap of the chunks, by the id of the next snack in each
+        int chunks = state.getActiveChunkCount();
+        int[] heap = new int[chunks];   // Chunks with snacks left
+        int[] next = new int[chunks];   // Next snack of each chunk
+        int[] key = new int[chunks];    // Its id
+        int heapSize = 0;
+        int snackCount = 0;
+        for (int k = 0; k < chunks; k++) {
+            ArrayList<GameState.Cell> s = state.getChunkSnacks(k);
+            snackCount += s.size();
+            if (s.isEmpty()) continue;
+            key[k] = s.get(0).id;
+            heap[heapSize++] = k;
+        }
+        for (int i = heapSize/2 - 1; i >= 0; i--) siftDown(heap, key, heapSize, i);
+        int[] snackID = new int[snackCount];
+        float[] snackX = new float[snackCount];
+        float[] snackY = new float[snackCount];
+        float[] snackR = new float[snackCount];
+        for (int i = 0; i < snackCount; i++) {
+            int k = heap[0];
+            ArrayList<GameState.Cell> chunk = state.getChunkSnacks(k);
+            GameState.Cell s = chunk.get(next[k]++);
+            snackID[i] = s.id;
+            snackX[i] = (float) s.x;
+            snackY[i] = (float) s.y;
+            snackR[i] = (float) s.r;
+            if (next[k] < chunk.size()) key[k] = chunk.get(next[k]).id;
+            else heap[0] = heap[--heapSize];
+            siftDown(heap, key, heapSize, 0);
+        }
+
+        return new Snapshot(tick, state.maxX, state.maxY, state.snackColor,
+                            playerCount, playerID, name, appearance, generation, headSeq,
+                            cellStart, cellX, cellY, cellR,
+                            snackCount, snackID, snackX, snackY, snackR);
+    }
+
+    // Move the chunk at position i of the heap down to where it belongs.  Snacks mostly
+    // come in runs from one chunk, which stays on top without going any further down.
+    private static void siftDown(int[] heap, int[] key, int size, int i) {
+        int k = heap[i];
+        while (true) {
+            int child = 2*i + 1;
+            if (child >= size) break;
+            if (child + 1 < size && key[heap[child+1]] < key[heap[child]]) child++;
+            if (key[heap[child]] > key[k]) break;
+            heap[i] = heap[child];
+            i = child;
+        }
+        heap[i] = k;
+    }
+
+    public long getTick() { return tick; }
+    public int getPlayerCount() { return playerCount; }
+    public int getSnackCount() { return snackCount; }
+
+    /**
+     * @param id The player id
+     * @returns The position of the player in this snapshot, or -1 if not in it
+     **/
+    public int indexOf(int id) {
+        int i = Arrays.binarySearch(playerID, 0, playerCount, id);   // They are in id order
+        return i >= 0 ? i : -1;
+    }
+
+    // Get the bounding box of the given player's cells (same as GameState.getBoundingBox)
+    public Rectangle2D.Double getBoundingBox(int id) {
+        int p = indexOf(id);
+        if (p < 0 || cellStart[p] == cellStart[p+1]) return new Rectangle2D.Double(0, 0, maxX, maxY);  // Full screen
+
+        double cellMinX = maxX;
+        double cellMaxX = 0;
+        double cellMinY = maxY;
+        double cellMaxY = 0;
+        for (int c = cellStart[p]; c < cellStart[p+1]; c++) {
+            if (cellX[c]-cellR[c] < cellMinX) cellMinX = cellX[c] - cellR[c];
+            if (cellX[c]+cellR[c] > cellMaxX) cellMaxX = cellX[c] + cellR[c];
+            if (cellY[c]-cellR[c] < cellMinY) cellMinY = cellY[c] - cellR[c];
+            if (cellY[c]+cellR[c] > cellMaxY) cellMaxY = cellY[c] + cellR[c];
+        }
+
+        return new Rectangle2D.Double(cellMinX, cellMinY, cellMaxX - cellMinX, cellMaxY - cellMinY);
+    }
+
+    /**
+     * Get the part of the world a player looks at: its bounding box with a little buffer
+     * (5% of width/height) on all sides, or increased in size to fit a minimum.
+     **/
+    public Rectangle2D.Double getViewBox(int id) {
+        Rectangle2D.Double bounds = getBoundingBox(id);
+        double bufferX = bounds.width*0.05;
+        if (bounds.width*1.1 < MIN_VIEW_WIDTH) {
+            // Too small even with buffer
+            bufferX = (MIN_VIEW_WIDTH - bounds.width)*0.5;
+        }
+        double bufferY = bounds.height*0.05;
+        if (bounds.height*1.1 < MIN_VIEW_HEIGHT) {
+            // Too small even with buffer
+            bufferY = (MIN_VIEW_HEIGHT - bounds.height)*0.5;
+        }
+        bounds.x -= bufferX;
+        bounds.y -= bufferY;
+        bounds.width += bufferX*2;
+        bounds.height += bufferY*2;
+        return bounds;
+    }
+
+    /**
+     * Cut this snapshot down to what can be seen in the given area.
+     * Players are kept whole if any of their cells is in the area (so deltas of their
+     * bodies still work), and the player with id keep is always kept.  Snacks are kept if they touch the area.
+     * Only the snacks and cells in the grid buckets around the area are looked at (unless the
+     * area is so big it's quicker to go through them all).
+     * @param view The area of the world to keep
+     * @param keep The id of the player looking (or -1)
+     **/
+    public Snapshot filter(Rectangle2D view, int keep) {
+        double left = view.getMinX();
+        double right = view.getMaxX();
+        double top = view.getMinY();
+        double bottom = view.getMaxY();
+        Index index = this.index;
+        if (index == null) this.index = index = new Index(this);
+
+        // Which players can be seen
+        boolean[] seen = new boolean[playerCount];
+        int[] inView = index.cells.find(left, top, right, bottom);
+        if (inView != null) {
+            for (int k = 1; k <= inView[0]; k++) seen[index.cellOwner[inView[k]]] = true;
+        } else {
+            for (int i = 0; i < playerCount; i++) {
+                for (int c = cellStart[i]; c < cellStart[i+1] && !seen[i]; c++) {
+                    seen[i] = cellX[c]+cellR[c] >= left && cellX[c]-cellR[c] <= right &&
+                              cellY[c]+cellR[c] >= top && cellY[c]-cellR[c] <= bottom;
+                }
+            }
+        }
+        int kept = indexOf(keep);
+        if (kept >= 0) seen[kept] = true;
+        int players = 0;
+        int cells = 0;
+        for (int i = 0; i < playerCount; i++) {
+            if (!seen[i]) continue;
+            players++;
+            cells += cellStart[i+1] - cellStart[i];
+        }
+        int[] vPlayerID = new int[players];
+        String[] vName = new String[players];
+        Color[] vAppearance = new Color[players];
+        int[] vGeneration = new int[players];
+        long[] vHeadSeq = new long[players];
+        int[] vCellStart = new int[players+1];
+        float[] vCellX = new float[cells];
+        float[] vCellY = new float[cells];
+        float[] vCellR = new float[cells];
+        int p = 0;
+        int c = 0;
+        for (int i = 0; i < playerCount; i++) {
+            if (!seen[i]) continue;
+            int length = cellStart[i+1] - cellStart[i];
+            vPlayerID[p] = playerID[i];
+            vName[p] = name[i];
+            vAppearance[p] = appearance[i];
+            vGeneration[p] = generation[i];
+            vHeadSeq[p] = headSeq[i];
+            vCellStart[p] = c;
+            System.arraycopy(cellX, cellStart[i], vCellX, c, length);
+            System.arraycopy(cellY, cellStart[i], vCellY, c, length);
+            System.arraycopy(cellR, cellStart[i], vCellR, c, length);
+            c += length;
+            p++;
+        }
+        vCellStart[players] = c;
+
+        // Which snacks can be seen (still in id order)
+        int[] found = index.snacks.find(left, top, right, bottom);
+        if (found == null) {
+            found = new int[snackCount + 1];
+            for (int i = 0; i < snackCount; i++) {
+                if (snackX[i]+snackR[i] >= left && snackX[i]-snackR[i] <= right &&
+                    snackY[i]+snackR[i] >= top && snackY[i]-snackR[i] <= bottom) found[++found[0]] = i;
+            }
+        }
+        int snacks = found[0];
+        int[] vSnackID = new int[snacks];
+        float[] vSnackX = new float[snacks];
+        float[] vSnackY = new float[snacks];
+        float[] vSnackR = new float[snacks];
+        for (int n = 0; n < snacks; n++) {
+            int i = found[n + 1];
+            vSnackID[n] = snackID[i];
+            vSnackX[n] = snackX[i];
+            vSnackY[n] = snackY[i];
+            vSnackR[n] = snackR[i];
+        }
+
+        return new Snapshot(tick, maxX, maxY, snackColor,
+                            players, vPlayerID, vName, vAppearance, vGeneration, vHeadSeq,
+                            vCellStart, vCellX, vCellY, vCellR,
+                            snacks, vSnackID, vSnackX, vSnackY, vSnackR);
+    }
+
+    /**
+     * Make a snapshot in between two others: t=0 is a, t=1 is b (and above 1 it carries on past b).
+     * Players are taken from b.  A player that was in a too (and hasn't respawned since) gets each of its
+     * cells moved from where that cell was in a toward where it is in b, so the snake slides along.
+     * Snacks don't move, so they come from whichever of the two is at or before the time drawn.
+     * The cells go in the arrays given (at least as long as b has cells), so the client can use
+     * the same ones every frame: the snapshot made only holds on to them, see interpolate to fill them in.
+     * @param a The earlier snapshot
+     * @param b The later snapshot
+     * @param past true if the time drawn is before b (t < 1)
+     * @param x Where the cells' positions and sizes go
+     **/
+    public static Snapshot between(Snapshot a, Snapshot b, boolean past, float[] x, float[] y, float[] r) {
+        Snapshot snacks = past ? a : b;
+        return new Snapshot(snacks.tick, b.maxX, b.maxY, b.snackColor,
+                            b.playerCount, b.playerID, b.name, b.appearance, b.generation, b.headSeq,
+                            b.cellStart, x, y, r,
+                            snacks.snackCount, snacks.snackID, snacks.snackX, snacks.snackY, snacks.snackR);
+    }
+
+    /**
+     * Fill in the cells of a snapshot made by between, at time t from a to b.  Makes nothing new.
+     * @param a The earlier snapshot
+     * @param b The later snapshot
+     * @param t How far from a to b
+     * @param into The snapshot between(a, b, t < 1, ...) made
+     **/
+    public static void interpolate(Snapshot a, Snapshot b, double t, Snapshot into) {
+        float[] x = into.cellX;
+        float[] y = into.cellY;
+        float[] r = into.cellR;
+        int j = 0;  // The same player in a (both are in id order)
+        for (int i = 0; i < b.playerCount; i++) {
+            while (j < a.playerCount && a.playerID[j] < b.playerID[i]) j++;
+            int from = b.cellStart[i];
+            int length = b.cellStart[i+1] - from;
+            int moving = 0;  // Cells that were in a too
+            if (j < a.playerCount && a.playerID[j] == b.playerID[i] && a.generation[j] == b.generation[i]) {
+                moving = Math.min(length, a.cellStart[j+1] - a.cellStart[j]);
+            }
+            for (int c = 0; c < length; c++) {
+                int cb = from + c;
+                if (c < moving) {
+                    int ca = a.cellStart[j] + c;
+                    x[cb] = (float) (a.cellX[ca] + (b.cellX[cb] - a.cellX[ca])*t);
+                    y[cb] = (float) (a.cellY[ca] + (b.cellY[cb] - a.cellY[ca])*t);
+                    r[cb] = (float) (a.cellR[ca] + (b.cellR[cb] - a.cellR[ca])*t);
+                } else {
+                    x[cb] = b.cellX[cb];
+                    y[cb] = b.cellY[cb];
+                    r[cb] = b.cellR[cb];
+                }
+            }
+        }
+    }
+
+    /**
+     * Display the snapshot
+     **/
+    public void display(PrintStream out) {
+        out.println(describe());
+    }
+
+    /**
+     * @returns What display prints: every player's cells, and how many snacks there are
+     **/
+    public String describe() {
+        StringBuilder res = new StringBuilder();
+        res.append("============ Snapshot ").append(tick).append(" =================\n");
+        for (int i = 0; i < playerCount; i++) {
+            res.append("  ");
+            res.append(name[i]);
+            res.append(" cells: ");
+            for (int c = cellStart[i]; c < cellStart[i+1]; c++) {
+                res.append("(");
+                res.append(cellX[c]);
+                res.append(",");
+                res.append(cellY[c]);
+                res.append(",");
+                res.append(cellR[c]);
+                res.append(") ");
+            }
+            res.append("\n");
+        }
+        res.append("  ").append(snackCount).append(" snacks\n");
+        res.append("====================================");
+        return res.toString();
+    }
+}
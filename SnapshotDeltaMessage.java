@@ -0,0 +1,20 @@
+/***************
+ * SnapshotDeltaMessage
+ * Spring 21: CSC340
+ * This is the Snapshot Delta message
+ * Holds the changes between two snapshots.  The body is left encoded until the
+ * client finds the base snapshot and applies it (see MessageCodec.applyDelta).
+ ***************/
+import java.nio.ByteBuffer;
+
+public class SnapshotDeltaMessage extends Message {
+    long baseTick;   // The snapshot this delta is against
+    long tick;       // The snapshot this delta produces
+    transient ByteBuffer body;
+    public SnapshotDeltaMessage(long baseTick, long tick, ByteBuffer body) {
+        this.baseTick = baseTick;
+        this.tick = tick;
+        this.body = body;
+    }
+
+}
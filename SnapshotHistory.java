@@ -0,0 +1,33 @@
+/***************
+ * SnapshotHistory
+ * Spring 21: CSC340
+ * The last few snapshots, looked up by tick.
+ * The server uses it to find the snapshot a client last acknowledged (to send a delta against it)
+ * and the client uses it to find the snapshot a delta was made against.
+ ***************/
+public class SnapshotHistory {
+    private final Snapshot[] ring;   // Snapshot for tick t is kept at t % ring.length
+
+    /**
+     * @param size How many ticks back snapshots are remembered
+     **/
+    public SnapshotHistory(int size) {
+        this.ring = new Snapshot[size];
+    }
+
+    public int size() { return ring.length; }
+
+    public synchronized void add(Snapshot s) {
+        ring[(int) (s.tick % ring.length)] = s;
+    }
+
+    /**
+     * @returns The snapshot taken at the given tick, or null if it's too old (or never was)
+     **/
+    public synchronized Snapshot get(long tick) {
+        if (tick < 0) return null;
+        Snapshot s = ring[(int) (tick % ring.length)];
+        if (s == null || s.tick != tick) return null;
+        return s;
+    }
+}
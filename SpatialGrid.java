@@ -0,0 +1,183 @@
+/***************
+ * SpatialGrid
+ * Spring 21: CSC340
+ * A uniform grid that buckets cells by their (x,y) position so that a collision
+ * check only has to look at the cells in the buckets next to it, not every cell in the world.
+ * Entries are kept in plain arrays (x, y, r, owner, index) and the grid is meant to be
+ * cleared and refilled every tick, so no objects are created once it has grown to size.
+ ***************/
+import java.util.Arrays;
+
+public class SpatialGrid {
+    public static final int NO_OWNER = -1;   // Owner used for cells that belong to nobody (snacks)
+
+    private final double bucketSize;  // Width and height of one bucket
+    private int[] table;   // First entry in each (hashed) bucket, -1 if empty
+    private int mask;      // table.length - 1 (table length is a power of 2)
+    private int[] next;    // Next entry in the same bucket, -1 at the end of the chain
+    private double[] x;    // Entry positions and radii
+    private double[] y;
+    private double[] r;
+    private int[] owner;   // Player that owns the entry (or NO_OWNER)
+    private int[] index;   // Where the entry came from (index in snack list or player body)
+    private int size;      // Number of entries
+    private double maxR;   // Largest radius inserted, so queries know how far to look
+
+    public SpatialGrid(double bucketSize) {
+        this(bucketSize, 256);
+    }
+
+    /**
+     * @param bucketSize Width and height of one bucket
+     * @param capacity Entries to make room for at first (a power of 2, it grows as needed)
+     **/
+    public SpatialGrid(double bucketSize, int capacity) {
+        this.bucketSize = bucketSize;
+        this.table = new int[capacity];
+        this.mask = table.length - 1;
+        Arrays.fill(table, -1);
+        this.next = new int[capacity];
+        this.x = new double[capacity];
+        this.y = new double[capacity];
+        this.r = new double[capacity];
+        this.owner = new int[capacity];
+        this.index = new int[capacity];
+        this.size = 0;
+        this.maxR = 0;
+    }
+
+    public int size() { return size; }
+    public int getOwner(int e) { return owner[e]; }
+    public int getIndex(int e) { return index[e]; }
+    public boolean isRemoved(int e) { return r[e] == 0; }
+
+    /**
+     * Remove every entry from the grid (the arrays are kept for reuse)
+     **/
+    public void clear() {
+        Arrays.fill(table, -1);
+        size = 0;
+        maxR = 0;
+    }
+
+    /**
+     * Add a cell to the grid
+     * @param x The x position of the cell
+     * @param y The y position of the cell
+     * @param r The radius of the cell
+     * @param owner The player owning the cell (or NO_OWNER)
+     * @param index The position of the cell in its owner's list
+     * @returns The entry number of this cell in the grid
+     **/
+    public int insert(double x, double y, double r, int owner, int index) {
+        if (size == this.x.length) grow();
+        int e = size++;
+        this.x[e] = x;
+        this.y[e] = y;
+        this.r[e] = r;
+        this.owner[e] = owner;
+        this.index[e] = index;
+        if (r > maxR) maxR = r;
+        int b = bucket(cellOf(x), cellOf(y));
+        next[e] = table[b];
+        table[b] = e;
+        return e;
+    }
+
+    /**
+     * Remove an entry from future queries (it just gets a radius of 0, like an eaten snack)
+     **/
+    public void remove(int e) {
+        r[e] = 0;
+    }
+
+    /**
+     * Remove a consecutive range of entries, e.g. all the cells inserted for one player
+     * @param from First entry to remove
+     * @param to One past the last entry to remove
+     **/
+    public void remove(int from, int to) {
+        for (int e = from; e < to; e++) r[e] = 0;
+    }
+
+    /**
+     * Find an entry colliding with the given cell, only looking in the nearby buckets
+     * @param qx The x position of the cell
+     * @param qy The y position of the cell
+     * @param qr The radius of the cell
+     * @param ignoreOwner Entries owned by this player are skipped (so a head doesn't hit its own body)
+     * @returns The entry number of a colliding cell, or -1 if there is none
+     * Queries only read the grid, so several threads can query at once (as long as nobody inserts or removes).
+     **/
+    public int findFirst(double qx, double qy, double qr, int ignoreOwner) {
+        if (qr == 0 || size == 0) return -1;  // Cell is non-existent (or nothing to hit)
+        double range = qr + maxR;
+        int minGX = cellOf(qx - range);
+        int maxGX = cellOf(qx + range);
+        int minGY = cellOf(qy - range);
+        int maxGY = cellOf(qy + range);
+        for (int gx = minGX; gx <= maxGX; gx++) {
+            for (int gy = minGY; gy <= maxGY; gy++) {
+                for (int e = table[bucket(gx, gy)]; e >= 0; e = next[e]) {
+                    if (r[e] == 0 || owner[e] == ignoreOwner && ignoreOwner != NO_OWNER) continue;
+                    double dx = qx - x[e];
+                    double dy = qy - y[e];
+                    double distCollision = qr + r[e];
+                    if (dx*dx + dy*dy >= distCollision*distCollision) continue;
+                    // Only count it from its own grid cell: a bucket can hold several cells, so otherwise
+                    // which hit comes first would depend on the table size (and replays must not)
+                    if (cellOf(x[e]) == gx && cellOf(y[e]) == gy) return e;
+                }
+            }
+        }
+        return -1;
+    }
+
+    /**
+     * Find an entry colliding with the given cell among the entries from .. to-1 only, going
+     * through them one by one (for checking against a few entries just inserted)
+     * @returns The entry number of a colliding cell, or -1 if there is none
+     **/
+    public int findFirst(int from, int to, double qx, double qy, double qr, int ignoreOwner) {
+        if (qr == 0) return -1;
+        for (int e = from; e < to; e++) {
+            if (r[e] == 0 || owner[e] == ignoreOwner && ignoreOwner != NO_OWNER) continue;
+            double dx = qx - x[e];
+            double dy = qy - y[e];
+            double distCollision = qr + r[e];
+            if (dx*dx + dy*dy < distCollision*distCollision) return e;
+        }
+        return -1;
+    }
+
+    // Grid coordinate of a world coordinate
+    private int cellOf(double v) {
+        return (int) Math.floor(v / bucketSize);
+    }
+
+    // Hash a grid coordinate into the bucket table.  Different coordinates can share a
+    // bucket, that's fine since every entry is distance checked anyway.
+    private int bucket(int gx, int gy) {
+        return (gx * 73856093 ^ gy * 19349663) & mask;
+    }
+
+    // Double the entry arrays, and the bucket table with them to keep the chains short
+    private void grow() {
+        int cap = x.length * 2;
+        next = Arrays.copyOf(next, cap);
+        x = Arrays.copyOf(x, cap);
+        y = Arrays.copyOf(y, cap);
+        r = Arrays.copyOf(r, cap);
+        owner = Arrays.copyOf(owner, cap);
+        index = Arrays.copyOf(index, cap);
+
+        table = new int[cap];
+        mask = cap - 1;
+        Arrays.fill(table, -1);
+        for (int e = 0; e < size; e++) {
+            int b = bucket(cellOf(x[e]), cellOf(y[e]));
+            next[e] = table[b];
+            table[b] = e;
+        }
+    }
+}
@@ -0,0 +1,142 @@
+/***************
+ * SpriteCache
+ * Spring 21: CSC340
+ * Pre-drawn images of cells, so the client can draw a cell with one image copy instead of
+ * filling an anti-aliased circle (and measuring and drawing the name on a head) every frame.
+ * A sprite is kept for each color, radius in whole pixels, and label.  Only the most recently
+ * used MAX_SPRITES are kept, the rest get dropped (and drawn again if needed later).
+ * A sprite used in the current frame is never dropped for another: if a frame shows more
+ * different cells than fit, get returns null for the rest and they are drawn the plain way,
+ * rather than every cell pushing out the one drawn next (and being drawn anew every frame).
+ ***************/
+import java.awt.Color;
+import java.awt.Font;
+import java.awt.Graphics2D;
+import java.awt.RenderingHints;
+import java.awt.geom.Ellipse2D;
+import java.awt.geom.Rectangle2D;
+import java.awt.image.BufferedImage;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+public class SpriteCache {
+    public static final int MAX_SPRITES = 256;   // Sprites kept before the least recently used get dropped
+    public static final int MAX_RADIUS = 64;     // Largest radius (in pixels) drawn with a sprite
+    public static final Font LABEL_FONT = new Font("Serif", Font.BOLD, 18);
+    public static final Color NO_COLOR = Color.GRAY;   // Drawn for a player that has no color
+
+    // What a sprite looks like
+    private static final class Key {
+        int rgb;
+        int radius;
+        String label;
+
+        Key(int rgb, int radius, String label) {
+            this.rgb = rgb;
+            this.radius = radius;
+            this.label = label;
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            if (!(o instanceof Key)) return false;
+            Key k = (Key) o;
+            return rgb == k.rgb && radius == k.radius &&
+                   (label == null ? k.label == null : label.equals(k.label));
+        }
+
+        @Override
+        public int hashCode() {
+            int h = rgb*31 + radius;
+            return label == null ? h : h*31 + label.hashCode();
+        }
+    }
+
+    // A sprite and the last frame it was used in
+    private static final class Sprite {
+        final BufferedImage image;
+        long frame;
+
+        Sprite(BufferedImage image, long frame) {
+            this.image = image;
+            this.frame = frame;
+        }
+    }
+
+    private final LinkedHashMap<Key, Sprite> sprites;
+    private final Key lookup = new Key(0, 0, null);   // Reused for looking up, so a hit creates nothing
+    private long frame = 0;       // The frame being drawn (see beginFrame)
+    private long fullFrame = -1;  // A frame every sprite kept has been used in (nothing more fits in it)
+
+    public SpriteCache() {
+        // Access order, so the eldest entry is the least recently used
+        this.sprites = new LinkedHashMap<Key, Sprite>(MAX_SPRITES*2, 0.75f, true) {
+            protected boolean removeEldestEntry(Map.Entry<Key, Sprite> eldest) {
+                return size() > MAX_SPRITES;
+            }
+        };
+    }
+
+    /**
+     * Start drawing a new frame (sprites used in it are kept until the next one)
+     **/
+    public void beginFrame() {
+        frame++;
+    }
+
+    /**
+     * Get the sprite of a cell, drawing it if it isn't cached.
+     * The cell's center is the center of the image.
+     * @param color The color of the cell (null for a player with none, drawn in NO_COLOR)
+     * @param radius The radius of the cell, in pixels (1 to MAX_RADIUS)
+     * @param label The name written on the cell (or null)
+     * @returns The sprite, or null if the cache is full of sprites used this frame (draw it without one)
+     **/
+    public BufferedImage get(Color color, int radius, String label) {
+        if (color == null) color = NO_COLOR;
+        lookup.rgb = color.getRGB();
+        lookup.radius = radius;
+        lookup.label = label;
+        Sprite sprite = sprites.get(lookup);
+        if (sprite != null) {
+            sprite.frame = frame;
+            return sprite.image;
+        }
+        if (sprites.size() >= MAX_SPRITES) {
+            // Only the least recently used can go, and not if it's been used this frame (then they all have)
+            if (fullFrame == frame || sprites.values().iterator().next().frame == frame) {
+                fullFrame = frame;
+                return null;
+            }
+        }
+        sprite = new Sprite(draw(color, radius, label), frame);
+        sprites.put(new Key(lookup.rgb, radius, label), sprite);
+        return sprite.image;
+    }
+
+    public int size() { return sprites.size(); }
+
+    // Draw a cell the same way App.VisPanel.drawCell would
+    private static BufferedImage draw(Color color, int radius, String label) {
+        int size = radius*2 + 2;   // A pixel spare on each side for the anti-aliasing
+        BufferedImage sprite = new BufferedImage(size, size, BufferedImage.TYPE_INT_ARGB);
+        Graphics2D g = sprite.createGraphics();
+        g.setRenderingHint(RenderingHints.KEY_ANTIALIASING, RenderingHints.VALUE_ANTIALIAS_ON);
+        g.setPaint(color);
+        g.fill(new Ellipse2D.Double(1, 1, radius*2, radius*2));
+
+        if (label != null && label.length() > 0) {
+            // The label is centered and scaled to fill most of the cell's width
+            g.setRenderingHint(RenderingHints.KEY_TEXT_ANTIALIASING, RenderingHints.VALUE_TEXT_ANTIALIAS_ON);
+            Rectangle2D rec = g.getFontMetrics(LABEL_FONT).getStringBounds(label, g);
+            double scaleFactor = radius*1.8/rec.getWidth();
+            g.translate(size/2.0, size/2.0);
+            g.scale(scaleFactor, scaleFactor);
+            g.setColor(Color.BLACK);
+            g.setFont(LABEL_FONT);
+            g.drawString(label, (float) -rec.getCenterX(), (float) -rec.getCenterY());
+        }
+        g.dispose();
+        return sprite;
+    }
+}
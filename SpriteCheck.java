@@ -0,0 +1,92 @@
+/***************
+ * SpriteCheck
+ * Spring 21: CSC340
+ * Checks the client can draw everything a server may send it, in particular a player with
+ * no color (a player who cancelled the color chooser): the game is sent through MessageCodec
+ * the way a server sends it, and every cell of it is drawn through a SpriteCache.
+ * Also checks a crowded view (more different cells than the cache holds) doesn't make the
+ * cache draw its sprites anew every frame.
+ * Needs no window.  Exits with status 1 if anything fails.
+ *     java SpriteCheck
+ ***************/
+import java.awt.Color;
+import java.awt.image.BufferedImage;
+import java.io.OutputStream;
+import java.io.PrintStream;
+import java.nio.ByteBuffer;
+
+public class SpriteCheck {
+    private static int failures = 0;
+
+    private static void check(boolean ok, String what) {
+        if (ok) return;
+        System.out.println("FAILED: " + what);
+        failures++;
+    }
+
+    public static void main(String[] args) throws Exception {
+        System.setProperty("java.awt.headless", "true");
+
+        // The engine prints each player it adds
+        PrintStream out = System.out;
+        System.setOut(new PrintStream(OutputStream.nullOutputStream()));
+        GameEngine e = new GameEngine();
+        int colored = e.addPlayer("colored", Color.BLUE);
+        int colorless = e.addPlayer("colorless", null);
+        for (int i = 0; i < 10; i++) e.gameState.addRandomSnack();
+        System.setOut(out);
+
+        // As the client gets it
+        byte[] frame = MessageCodec.encode(Snapshot.of(e.gameState, 1));
+        Snapshot s = (Snapshot) MessageCodec.decode(ByteBuffer.wrap(frame, 4, frame.length - 4).slice());
+        check(s.appearance[s.indexOf(colorless)] == null, "the colorless player arrived with a color");
+
+        SpriteCache sprites = new SpriteCache();
+        try {
+            for (int p = 0; p < s.playerCount; p++) {
+                for (int radius = 1; radius <= SpriteCache.MAX_RADIUS; radius *= 2) {
+                    sprites.get(s.appearance[p], radius, null);
+                    sprites.get(s.appearance[p], radius, s.name[p]);
+                }
+            }
+            for (int i = 0; i < s.snackCount; i++) sprites.get(s.snackColor, 2, null);
+        } catch (RuntimeException ex) {
+            check(false, "drawing the cells threw " + ex);
+        }
+
+        // The colorless player is drawn in NO_COLOR, the middle of a sprite is the cell's color
+        BufferedImage sprite = sprites.get(null, 8, null);
+        check(sprite.getRGB(sprite.getWidth()/2, sprite.getHeight()/2) == SpriteCache.NO_COLOR.getRGB(),
+              "a colorless cell isn't drawn in NO_COLOR");
+        BufferedImage blue = sprites.get(s.appearance[s.indexOf(colored)], 8, null);
+        check(blue.getRGB(blue.getWidth()/2, blue.getHeight()/2) == Color.BLUE.getRGB(),
+              "a colored cell isn't drawn in its color");
+
+        // A crowd of CROWD colors, a body and a head sprite each, drawn frame after frame
+        final int CROWD = 200;
+        SpriteCache crowd = new SpriteCache();
+        BufferedImage[] first = new BufferedImage[2*CROWD];
+        int redrawn = 0;
+        int cached = 0;
+        for (int f = 0; f < 3; f++) {
+            crowd.beginFrame();
+            for (int p = 0; p < CROWD; p++) {
+                Color color = new Color(p*1000);
+                for (int head = 0; head < 2; head++) {
+                    BufferedImage got = crowd.get(color, 4, head == 1 ? "p" + p : null);
+                    int k = 2*p + head;
+                    if (f == 0) first[k] = got;
+                    else if (got != first[k]) redrawn++;   // Drawn again (or newly dropped)
+                    else if (got != null) cached++;
+                }
+            }
+        }
+        check(redrawn == 0, "a crowded view drew " + redrawn + " sprites again in later frames");
+        check(cached == 2*Math.min(2*CROWD, SpriteCache.MAX_SPRITES),
+              "a crowded view only kept " + cached/2 + " sprites from frame to frame");
+        check(crowd.size() <= SpriteCache.MAX_SPRITES, "the cache grew past MAX_SPRITES");
+
+        if (failures > 0) System.exit(1);
+        System.out.println("OK");
+    }
+}
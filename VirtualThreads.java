@@ -0,0 +1,46 @@
+/***************
+ * VirtualThreads
+ * Spring 21: CSC340
+ * Gets an executor that runs every task on its own virtual thread.
+ * Virtual threads only exist on newer JVMs (21+) while the project is built for an older
+ * language level, so they are looked up by reflection.  On a JVM without them this falls
+ * back to a cached pool of ordinary (platform) threads, which behaves the same, just heavier.
+ ***************/
+import java.lang.reflect.Method;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+public class VirtualThreads {
+    private static Method factory = lookup();
+
+    // Executors.newVirtualThreadPerTaskExecutor(), if this JVM has it
+    private static Method lookup() {
+        try {
+            return Executors.class.getMethod("newVirtualThreadPerTaskExecutor");
+        } catch (NoSuchMethodException e) {
+            return null;
+        }
+    }
+
+    /**
+     * @returns true if this JVM has virtual threads
+     **/
+    public static boolean isAvailable() {
+        return factory != null;
+    }
+
+    /**
+     * @returns An executor starting a new virtual thread for each task
+     *          (or a cached platform thread pool if virtual threads aren't available)
+     **/
+    public static ExecutorService newExecutor() {
+        if (factory != null) {
+            try {
+                return (ExecutorService) factory.invoke(null);
+            } catch (ReflectiveOperationException e) {
+                Debug.getInstance().println(1, "[VirtualThreads] Cannot create virtual threads: " + e);
+            }
+        }
+        return Executors.newCachedThreadPool();
+    }
+}
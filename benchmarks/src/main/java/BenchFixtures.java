@@ -0,0 +1,211 @@
+/***************
+ * BenchFixtures
+ * Spring 21: CSC340
+ * The work the JMH benchmarks (package bench) time.  JMH won't run benchmarks in the default
+ * package and the benchmarks can't name the game classes from their package, so they get
+ * the work from here, wrapped up as a bench.Fixture.
+ * Everything is set up from a fixed seed so every run times the same game.
+ ***************/
+import bench.Fixture;
+import java.awt.Color;
+import java.awt.geom.Rectangle2D;
+import java.util.ArrayList;
+import java.util.Random;
+
+public class BenchFixtures {
+    public static final long SEED = 340;
+    public static final int WARMUP_TICKS = 600;   // Ticks the game runs before being timed (10 seconds of play)
+    public static final int TURN_INTERVAL = 30;   // Ticks between the players changing direction while warming up
+    public static final int DELTA_TICKS = 3;      // How old the base of a delta is (the default send interval)
+
+    /**
+     * Make a fixture
+     * @param name What to time
+     * @param size The number of players (or for the single player fixtures, the length of the player)
+     * @param snacks The number of snacks
+     **/
+    public static Fixture create(String name, int size, int snacks) throws Exception {
+        switch (name) {
+            case "move": return move(size);
+            case "snackCollisions": return snackCollisions(snacks);
+            case "playerCollisions": return playerCollisions(size);
+            case "detectCollisions": return detectCollisions(size, snacks);
+            case "purgeSnacks": return purgeSnacks(snacks);
+            case "gameStateBinary": return gameStateBinary(size, snacks);
+            case "encodeSnapshot": return encodeSnapshot(size, snacks);
+            case "encodeDelta": return encodeDelta(size, snacks);
+            case "connectionView": return connectionView(size, snacks);
+            default: throw new IllegalArgumentException("No such fixture: " + name);
+        }
+    }
+
+    // A game state with the given number of snacks (and no players)
+    private static GameState newGameState(int snacks) {
+        GameState g = new GameState();
+        g.rand = new Random(SEED);
+        for (int i = 0; i < snacks; i++) g.addRandomSnack();
+        return g;
+    }
+
+    // A player of the given length, its body laid out back and forth in rows across the world
+    private static GameState.Player newPlayer(GameState g, double x, double y, int length) {
+        GameState.Player p = g.new Player("bench", x, y, g.minR, Color.RED);
+        int row = (int) g.maxX - 100;
+        for (int i = 1; i < length; i++) {
+            int along = i % row;
+            double cx = 50 + ((i / row) % 2 == 0 ? along : row - along);
+            double cy = 50 + 2*(i / row);
+            p.addCell(cx, cy, g.minR);
+        }
+        return p;
+    }
+
+    // Move a player along a big circle, one cell every time
+    private static Fixture move(int length) {
+        GameState g = newGameState(0);
+        GameState.Player p = newPlayer(g, g.maxX/2, g.maxY/2, length);
+        p.speed = 2/GameEngine.TICK_SECONDS;   // 2 units a tick, so it always moves a cell
+        double[] dx = new double[628];
+        double[] dy = new double[628];
+        for (int i = 0; i < dx.length; i++) {
+            dx[i] = Math.cos(i*0.01);
+            dy[i] = Math.sin(i*0.01);
+        }
+        return new Fixture() {
+            int turn;
+            public Object run() {
+                p.growAmount = 0;   // Keep the length the same (moving fast costs growth)
+                p.distance = 0;
+                turn = (turn + 1) % dx.length;
+                p.setDirection(dx[turn], dy[turn]);
+                p.move(GameEngine.TICK_SECONDS);
+                return p;
+            }
+        };
+    }
+
+    // A head (off the board, so nothing is hit) checked against every snack
+    private static Fixture snackCollisions(int snacks) {
+        GameState g = newGameState(snacks);
+        GameState.Player p = newPlayer(g, -10, -10, 1);
+        ArrayList<GameState.Cell> snack = g.getSnacks();
+        return () -> {
+            p.collisions(snack, true);
+            return p;
+        };
+    }
+
+    // A head (off the board, so nothing is hit) checked against every cell of a long player
+    private static Fixture playerCollisions(int length) {
+        GameState g = newGameState(0);
+        GameState.Player p = newPlayer(g, -10, -10, 1);
+        GameState.Player other = newPlayer(g, g.maxX/2, g.maxY/2, length);
+        return () -> {
+            p.collisions(other);
+            return p;
+        };
+    }
+
+    // An engine (not running its own thread) whose game has been played for a while
+    private static GameEngine newEngine(int players, int snacks) {
+        GameEngine e = new GameEngine();
+        GameState g = e.gameState;
+        g.rand = new Random(SEED);
+        Random turn = new Random(SEED);
+        for (int i = 0; i < players; i++) g.addPlayer("p" + i, Color.RED);
+        topUpSnacks(g, snacks);
+        for (int t = 0; t < WARMUP_TICKS; t++) {
+            if (t % TURN_INTERVAL == 0) {
+                for (int i = 0; i < players; i++) {
+                    g.setPlayerDirection(i, turn.nextDouble() - 0.5, turn.nextDouble() - 0.5);
+                }
+            }
+            g.moveAllPlayers(GameEngine.TICK_SECONDS);
+            e.detectCollisions();
+            topUpSnacks(g, snacks);
+            e.tick++;
+        }
+        return e;
+    }
+
+    // Put back the snacks eaten
+    private static void topUpSnacks(GameState g, int snacks) {
+        while (g.getSnackCount() < snacks) g.addRandomSnack();
+    }
+
+    // Collision detection (the snacks eaten are put back each time, so there's always as many)
+    private static Fixture detectCollisions(int players, int snacks) {
+        GameEngine e = newEngine(players, snacks);
+        return () -> {
+            e.detectCollisions();
+            topUpSnacks(e.gameState, snacks);
+            return e;
+        };
+    }
+
+    // Purge 1% of the snacks (then put them back for next time)
+    private static Fixture purgeSnacks(int snacks) {
+        GameState g = newGameState(snacks);
+        GameState.Player p = newPlayer(g, -10, -10, 1);
+        return () -> {
+            // Eaten by a player, the way the engine does it, so purging knows where to look
+            ArrayList<GameState.Cell> snack = g.getSnacks();
+            for (int i = 0; i < snack.size(); i += 100) p.eat(snack.get(i));
+            g.purgeSnacks();
+            topUpSnacks(g, snacks);
+            return g;
+        };
+    }
+
+    // The game state in its network form
+    private static Fixture gameStateBinary(int players, int snacks) {
+        GameEngine e = newEngine(players, snacks);
+        return () -> e.getGameStateBinary();
+    }
+
+    // Snapshots of the engine's game, the current one and one DELTA_TICKS back
+    private static Snapshot[] snapshots(int players, int snacks) {
+        GameEngine e = newEngine(players, snacks);
+        GameState g = e.gameState;
+        Snapshot base = null;
+        for (int t = 0; t < DELTA_TICKS; t++) {
+            if (t == 0) base = Snapshot.of(g, e.tick);
+            g.moveAllPlayers(GameEngine.TICK_SECONDS);
+            e.detectCollisions();
+            topUpSnacks(g, snacks);
+            e.tick++;
+        }
+        return new Snapshot[] { base, Snapshot.of(g, e.tick) };
+    }
+
+    // A whole snapshot encoded as a frame (the same encoding transmitMessage does for any message)
+    private static Fixture encodeSnapshot(int players, int snacks) {
+        Snapshot snap = snapshots(players, snacks)[1];
+        return () -> Frame.of(snap);
+    }
+
+    // The changes since an earlier snapshot encoded as a frame
+    private static Fixture encodeDelta(int players, int snacks) {
+        Snapshot[] s = snapshots(players, snacks);
+        return () -> Frame.delta(s[0], s[1]);
+    }
+
+    // What the server does for each player connection on each push: cut out the player's view
+    // and encode it as a delta against the view it got earlier.  Goes through the players in turn.
+    private static Fixture connectionView(int players, int snacks) {
+        Snapshot[] s = snapshots(players, snacks);
+        Snapshot[] baseView = new Snapshot[players];
+        for (int id = 0; id < players; id++) {
+            baseView[id] = s[0].filter(GameServer.areaOfInterest(s[0], id), id);
+        }
+        return new Fixture() {
+            int id;
+            public Object run() throws Exception {
+                id = (id + 1) % players;
+                Rectangle2D.Double area = GameServer.areaOfInterest(s[1], id);
+                Snapshot view = s[1].filter(area, id);
+                return Frame.delta(baseView[id], view);
+            }
+        };
+    }
+}
@@ -0,0 +1,75 @@
+/***************
+ * EngineBenchmark
+ * Spring 21: CSC340
+ * The whole game: collision detection, purging the eaten snacks and encoding the
+ * game state, for a game that has been running for a while with the given number of players and snacks.
+ ***************/
+package bench;
+
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class EngineBenchmark {
+    // A game with players and snacks
+    @State(Scope.Thread)
+    public static class Game {
+        @Param({"10", "100", "1000"})
+        int players;
+
+        @Param({"100", "2500", "10000"})
+        int snacks;
+
+        Fixture detectCollisions;
+        Fixture gameStateBinary;
+
+        @Setup
+        public void setup() throws Exception {
+            detectCollisions = Fixtures.create("detectCollisions", players, snacks);
+            gameStateBinary = Fixtures.create("gameStateBinary", players, snacks);
+        }
+    }
+
+    // Just snacks (purging doesn't care about the players)
+    @State(Scope.Thread)
+    public static class Snacks {
+        @Param({"100", "2500", "10000"})
+        int snacks;
+
+        Fixture purgeSnacks;
+
+        @Setup
+        public void setup() throws Exception {
+            purgeSnacks = Fixtures.create("purgeSnacks", 0, snacks);
+        }
+    }
+
+    @Benchmark
+    public Object detectCollisions(Game game) throws Exception {
+        return game.detectCollisions.run();
+    }
+
+    @Benchmark
+    public Object purgeSnacks(Snacks snacks) throws Exception {
+        return snacks.purgeSnacks.run();
+    }
+
+    @Benchmark
+    public Object getGameStateBinary(Game game) throws Exception {
+        return game.gameStateBinary.run();
+    }
+}
@@ -0,0 +1,16 @@
+/***************
+ * Fixture
+ * Spring 21: CSC340
+ * One piece of game code for a benchmark to time.  The game classes are all in the default
+ * package, which code in a package (like JMH benchmarks have to be) can't name, so the
+ * benchmarks get the work to do through this interface (see BenchFixtures).
+ ***************/
+package bench;
+
+public interface Fixture {
+    /**
+     * Do the work once
+     * @returns Something computed, for the benchmark to hand to a Blackhole
+     **/
+    Object run() throws Exception;
+}
@@ -0,0 +1,27 @@
+/***************
+ * Fixtures
+ * Spring 21: CSC340
+ * Looks up the benchmark fixtures in the default package class BenchFixtures.
+ * Only done in the benchmark setup, the timed part is a plain interface call.
+ ***************/
+package bench;
+
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Method;
+
+public class Fixtures {
+    /**
+     * @param name The fixture to make (see BenchFixtures.create)
+     * @param size The number of players (or the length of a player)
+     * @param snacks The number of snacks
+     **/
+    public static Fixture create(String name, int size, int snacks) throws Exception {
+        Method create = Class.forName("BenchFixtures").getMethod("create", String.class, int.class, int.class);
+        try {
+            return (Fixture) create.invoke(null, name, size, snacks);
+        } catch (InvocationTargetException e) {
+            if (e.getCause() instanceof Exception) throw (Exception) e.getCause();
+            throw e;
+        }
+    }
+}
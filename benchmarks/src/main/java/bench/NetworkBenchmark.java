@@ -0,0 +1,61 @@
+/***************
+ * NetworkBenchmark
+ * Spring 21: CSC340
+ * What the server spends per push: encoding a full snapshot (what transmitMessage does
+ * for any message), encoding a delta, and the per connection work of cutting a player's
+ * view out of the snapshot and encoding it as a delta.
+ ***************/
+package bench;
+
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Thread)
+public class NetworkBenchmark {
+    @Param({"10", "100", "1000"})
+    int players;
+
+    @Param({"2500"})
+    int snacks;
+
+    Fixture encodeSnapshot;
+    Fixture encodeDelta;
+    Fixture connectionView;
+
+    @Setup
+    public void setup() throws Exception {
+        encodeSnapshot = Fixtures.create("encodeSnapshot", players, snacks);
+        encodeDelta = Fixtures.create("encodeDelta", players, snacks);
+        connectionView = Fixtures.create("connectionView", players, snacks);
+    }
+
+    @Benchmark
+    public Object encodeSnapshot() throws Exception {
+        return encodeSnapshot.run();
+    }
+
+    @Benchmark
+    public Object encodeDelta() throws Exception {
+        return encodeDelta.run();
+    }
+
+    @Benchmark
+    public Object connectionView() throws Exception {
+        return connectionView.run();
+    }
+}
@@ -0,0 +1,72 @@
+/***************
+ * PlayerBenchmark
+ * Spring 21: CSC340
+ * One player: moving it, and the brute force collision checks of its head against
+ * every snack and against every cell of another player.
+ ***************/
+package bench;
+
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class PlayerBenchmark {
+    // A player of some length, to move or to run into
+    @State(Scope.Thread)
+    public static class Body {
+        @Param({"10", "100", "1000"})
+        int length;
+
+        Fixture move;
+        Fixture playerCollisions;
+
+        @Setup
+        public void setup() throws Exception {
+            move = Fixtures.create("move", length, 0);
+            playerCollisions = Fixtures.create("playerCollisions", length, 0);
+        }
+    }
+
+    // Some snacks to check a head against
+    @State(Scope.Thread)
+    public static class Snacks {
+        @Param({"100", "2500", "10000"})
+        int snacks;
+
+        Fixture snackCollisions;
+
+        @Setup
+        public void setup() throws Exception {
+            snackCollisions = Fixtures.create("snackCollisions", 1, snacks);
+        }
+    }
+
+    @Benchmark
+    public Object move(Body body) throws Exception {
+        return body.move.run();
+    }
+
+    @Benchmark
+    public Object collisionsWithSnacks(Snacks snacks) throws Exception {
+        return snacks.snackCollisions.run();
+    }
+
+    @Benchmark
+    public Object collisionsWithPlayer(Body body) throws Exception {
+        return body.playerCollisions.run();
+    }
+}